@@ -1,11 +1,13 @@
 package cn.edu.tsinghua.cs.htm;
 
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import cn.edu.tsinghua.cs.htm.shapes.Cartesian;
 import cn.edu.tsinghua.cs.htm.shapes.Trixel;
 import cn.edu.tsinghua.cs.htm.utils.Constants;
 import cn.edu.tsinghua.cs.htm.utils.HTMid;
+import cn.edu.tsinghua.cs.htm.utils.Latlon2Cartesian;
 
 /**
  * Top class for spherical HTM indexing.
@@ -14,12 +16,29 @@ import cn.edu.tsinghua.cs.htm.utils.HTMid;
  */
 public class HTM {
 	
-	private static HTM instance = null;
+	private static final HTM instance = new HTM();
+	
+	/**
+	 * System property to set the deepest level of the Mesh table
+	 */
+	public static final String meshLevelProperty = "htm.mesh.level";
+	
+	private static final int defaultMeshLevel = 6;
 	
 	protected Cartesian[] origPoints;
 	
 	protected Trixel[] topTrixels;
 	
+	/**
+	 * Corners of the top Trixels, 9 doubles each, in the order of topTrixels
+	 */
+	private double[] topCorners;
+	
+	/**
+	 * Precomputed upper levels of the mesh
+	 */
+	protected Mesh mesh;
+	
 	private HTM() {
 		origPoints = new Cartesian[6];
 		origPoints[0] = new Cartesian(0.0, 0.0, 1.0 * Constants.scale);
@@ -38,12 +57,20 @@ public class HTM {
 		topTrixels[5] = new Trixel(origPoints[4], origPoints[0], origPoints[3], new HTMid("N1"));
 		topTrixels[6] = new Trixel(origPoints[3], origPoints[0], origPoints[2], new HTMid("N2"));
 		topTrixels[7] = new Trixel(origPoints[2], origPoints[0], origPoints[1], new HTMid("N3"));
+		
+		topCorners = new double[8 * 9];
+		for (int i = 0; i < 8; i++) {
+			for (int j = 0; j < 3; j++) {
+				double[] xyz = topTrixels[i].getCorner(j).get();
+				System.arraycopy(xyz, 0, topCorners, i * 9 + j * 3, 3);
+			}
+		}
+		
+		int meshLevel = Integer.getInteger(meshLevelProperty, defaultMeshLevel);
+		mesh = new Mesh(topCorners, Math.min(meshLevel, Mesh.levelLimit));
 	}
 	
 	public static HTM getInstance() {
-		if (instance == null) {
-			instance = new HTM(); 
-		}
 		return instance;
 	}
 	
@@ -51,58 +78,268 @@ public class HTM {
 		return topTrixels[i];
 	}
 	
+	/**
+	 * Get the precomputed upper levels of the mesh
+	 * Shared by point lookup and Trixel.expand()
+	 * @return Mesh
+	 */
+	public Mesh getMesh() {
+		return mesh;
+	}
+	
 	public HTMid Cartesian2HTMid(Cartesian p, int depth) {
-		HTMid topID = getTopHTMid(p);
-		if (topID.getId() < 8) {
-			return new HTMid(0);
-		}
+		double[] xyz = p.get();
+		return new HTMid(encode(xyz[0], xyz[1], xyz[2], depth));
+	}
+	
+	/**
+	 * Get the HTMid of the Trixel at the given depth containing a point
+	 * Walks the mesh on local doubles, allocating nothing on the heap
+	 * Levels covered by the Mesh are read from it instead of computed
+	 * Gives the same HTMids as descending with Trixel.expand()
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param depth 0 to HTMid.maxLevel
+	 * @return HTMid in long form, 0 if not found
+	 * @throws IllegalArgumentException if depth is out of range
+	 */
+	public long encode(double x, double y, double z, int depth) {
+		checkDepth(depth);
+		int top = getTopIndex(x, y, z);
+		long hid = top + 8;
 		
-		Trixel trixel = getTopTrixel((int)(topID.getId() - 8));
-		while (depth-- > 0) {
-			List<Trixel> children = trixel.expand();
-			boolean found = false;
-			for (Trixel child : children) {
-				if (child.containsStrict(p)) {
-					trixel = child;
-					found = true;
-					break;
+		int offset = top * 9;
+		double v0x = topCorners[offset], v0y = topCorners[offset + 1], v0z = topCorners[offset + 2];
+		double v1x = topCorners[offset + 3], v1y = topCorners[offset + 4], v1z = topCorners[offset + 5];
+		double v2x = topCorners[offset + 6], v2y = topCorners[offset + 7], v2z = topCorners[offset + 8];
+		
+		int meshDepth = Math.min(depth, mesh.getMaxLevel());
+		if (meshDepth > 0) {
+			mesh.ensureLevel(meshDepth);
+		}
+		for (int level = 1; level <= depth; level++) {
+			int child = -1;
+			
+			if (level <= meshDepth) {
+				double[] c = mesh.corners[level];
+				double[] b = mesh.circles[level];
+				int first = Mesh.indexOf(hid * 4, level);
+				// Same order as Trixel.expand(): strict tests first, then loose
+				for (int pass = 0; pass < 2 && child < 0; pass++) {
+					boolean strict = (pass == 0);
+					for (int k = 0; k < 4; k++) {
+						int o = (first + k) * 9;
+						int ob = (first + k) * 4;
+						if (Trixel.contains(c[o], c[o + 1], c[o + 2], c[o + 3], c[o + 4], c[o + 5],
+								c[o + 6], c[o + 7], c[o + 8], b[ob], b[ob + 1], b[ob + 2], b[ob + 3],
+								x, y, z, strict)) {
+							child = k;
+							break;
+						}
+					}
+				}
+				if (child < 0) {
+					return 0;
+				}
+				hid = hid * 4 + child;
+				if (level == meshDepth) {
+					int o = (first + child) * 9;
+					v0x = c[o]; v0y = c[o + 1]; v0z = c[o + 2];
+					v1x = c[o + 3]; v1y = c[o + 4]; v1z = c[o + 5];
+					v2x = c[o + 6]; v2y = c[o + 7]; v2z = c[o + 8];
 				}
+				continue;
 			}
-			if (!found) {
-				for (Trixel child : children) {
-					if (child.containsLoose(p)) {
-						trixel = child;
-						found = true;
-						break;
-					}
+			
+			double w0x = (v1x + v2x) / 2, w0y = (v1y + v2y) / 2, w0z = (v1z + v2z) / 2;
+			double w1x = (v0x + v2x) / 2, w1y = (v0y + v2y) / 2, w1z = (v0z + v2z) / 2;
+			double w2x = (v0x + v1x) / 2, w2y = (v0y + v1y) / 2, w2z = (v0z + v1z) / 2;
+			
+			// Same order as Trixel.expand(): strict tests first, then loose
+			for (int pass = 0; pass < 2 && child < 0; pass++) {
+				boolean strict = (pass == 0);
+				if (contains(v0x, v0y, v0z, w2x, w2y, w2z, w1x, w1y, w1z, x, y, z, strict)) {
+					child = 0;
+				} else if (contains(v1x, v1y, v1z, w0x, w0y, w0z, w2x, w2y, w2z, x, y, z, strict)) {
+					child = 1;
+				} else if (contains(v2x, v2y, v2z, w1x, w1y, w1z, w0x, w0y, w0z, x, y, z, strict)) {
+					child = 2;
+				} else if (contains(w0x, w0y, w0z, w1x, w1y, w1z, w2x, w2y, w2z, x, y, z, strict)) {
+					child = 3;
 				}
-				if (!found) {
-					return new HTMid(0);
+			}
+			
+			switch (child) {
+			case 0:
+				v1x = w2x; v1y = w2y; v1z = w2z;
+				v2x = w1x; v2y = w1y; v2z = w1z;
+				break;
+			case 1:
+				v0x = v1x; v0y = v1y; v0z = v1z;
+				v1x = w0x; v1y = w0y; v1z = w0z;
+				v2x = w2x; v2y = w2y; v2z = w2z;
+				break;
+			case 2:
+				v0x = v2x; v0y = v2y; v0z = v2z;
+				v1x = w1x; v1y = w1y; v1z = w1z;
+				v2x = w0x; v2y = w0y; v2z = w0z;
+				break;
+			case 3:
+				v0x = w0x; v0y = w0y; v0z = w0z;
+				v1x = w1x; v1y = w1y; v1z = w1z;
+				v2x = w2x; v2y = w2y; v2z = w2z;
+				break;
+			default:
+				return 0;
+			}
+			hid = hid * 4 + child;
+		}
+		
+		return hid;
+	}
+	
+	private static void checkDepth(int depth) {
+		if (depth < 0 || depth > HTMid.maxLevel) {
+			throw new IllegalArgumentException("Depth out of range: " + depth);
+		}
+	}
+	
+	/**
+	 * Encode a batch of points in parallel
+	 * hids[i] will be the same as encode(x[i], y[i], z[i], depth)
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param depth 0 to HTMid.maxLevel
+	 * @param hids array to hold the HTMids, at least as long as x
+	 */
+	public void encode(double[] x, double[] y, double[] z, int depth, long[] hids) {
+		checkDepth(depth);
+		if (y.length < x.length || z.length < x.length || hids.length < x.length) {
+			throw new IllegalArgumentException("Arrays shorter than x");
+		}
+		ForkJoinPool.commonPool().invoke(
+				new EncodeTask(x, y, z, false, depth, hids, 0, x.length));
+	}
+	
+	/**
+	 * Encode a batch of points given by latitude and longitude in parallel
+	 * hids[i] will be the same as encoding Latlon2Cartesian.parse(lat[i], lon[i])
+	 * @param latitude
+	 * @param longitude
+	 * @param depth 0 to HTMid.maxLevel
+	 * @param hids array to hold the HTMids, at least as long as latitude
+	 */
+	public void encodeLatlon(double[] latitude, double[] longitude, int depth, long[] hids) {
+		checkDepth(depth);
+		if (longitude.length < latitude.length || hids.length < latitude.length) {
+			throw new IllegalArgumentException("Arrays shorter than latitude");
+		}
+		ForkJoinPool.commonPool().invoke(
+				new EncodeTask(latitude, longitude, null, true, depth, hids, 0, latitude.length));
+	}
+	
+	/**
+	 * Splits [from, to) in halves until small enough to encode in a loop
+	 */
+	private static class EncodeTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private static final int threshold = 1 << 13;
+		
+		private final double[] a, b, c;
+		
+		private final boolean latlon;
+		
+		private final int depth;
+		
+		private final long[] hids;
+		
+		private final int from, to;
+		
+		EncodeTask(double[] a, double[] b, double[] c, boolean latlon,
+				int depth, long[] hids, int from, int to) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.latlon = latlon;
+			this.depth = depth;
+			this.hids = hids;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				HTM htm = HTM.getInstance();
+				if (latlon) {
+					double[] xyz = new double[3];
+					for (int i = from; i < to; i++) {
+						Latlon2Cartesian.parse(a[i], b[i], xyz);
+						hids[i] = htm.encode(xyz[0], xyz[1], xyz[2], depth);
+					}
+				} else {
+					for (int i = from; i < to; i++) {
+						hids[i] = htm.encode(a[i], b[i], c[i], depth);
+					}
 				}
+				return;
 			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new EncodeTask(a, b, c, latlon, depth, hids, from, middle),
+					new EncodeTask(a, b, c, latlon, depth, hids, middle, to));
 		}
 		
-		return trixel.getHTMid();
+	}
+	
+	/**
+	 * Primitive form of Trixel.containsStrict() and Trixel.containsLoose()
+	 * Computes the bounding circle as Trixel.getBoundingCircle() does
+	 * and passes it to Trixel.contains(), the test they use
+	 * @return true if point p in Trixel (a, b, c)
+	 */
+	private static boolean contains(double ax, double ay, double az,
+			double bx, double by, double bz,
+			double cx, double cy, double cz,
+			double px, double py, double pz, boolean strict) {
+		double e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+		double e2x = cx - bx, e2y = cy - by, e2z = cz - bz;
+		double nx = e1y * e2z - e1z * e2y;
+		double ny = e1z * e2x - e1x * e2z;
+		double nz = e1x * e2y - e1y * e2x;
+		double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		nx = nx * Constants.scale / len;
+		ny = ny * Constants.scale / len;
+		nz = nz * Constants.scale / len;
+		double d = (ax * nx + ay * ny + az * nz) / Constants.scale;
+		return Trixel.contains(ax, ay, az, bx, by, bz, cx, cy, cz, nx, ny, nz, d,
+				px, py, pz, strict);
 	}
 	
 	public HTMid getTopHTMid(Cartesian p) {
 		double[] xyz = p.get();
-		double x = xyz[0];
-		double y = xyz[1];
-		double z = xyz[2];
-		HTMid baseID;
+		return new HTMid(getTopIndex(xyz[0], xyz[1], xyz[2]) + 8);
+	}
+	
+	/**
+	 * Index of the top Trixel containing a point
+	 * @return 0 to 3 for S0 to S3, 4 to 7 for N0 to N3
+	 */
+	private static int getTopIndex(double x, double y, double z) {
 		if (x > 0 && y >= 0) {
-			baseID = (z >= 0) ? new HTMid("N3") : new HTMid("S0");
+			return (z >= 0) ? 7 : 0;
 		} else if (x <= 0 && y > 0) {
-			baseID = (z >= 0) ? new HTMid("N2") : new HTMid("S1");
+			return (z >= 0) ? 6 : 1;
 		} else if (x < 0 && y <= 0) {
-			baseID = (z >= 0) ? new HTMid("N1") : new HTMid("S2");
+			return (z >= 0) ? 5 : 2;
 		} else if (x >= 0 && y < 0) {
-			baseID = (z >= 0) ? new HTMid("N0") : new HTMid("S3");
+			return (z >= 0) ? 4 : 3;
 		} else {
-			baseID = (z >= 0) ? new HTMid("N3") : new HTMid("S0");
+			return (z >= 0) ? 7 : 0;
 		}
-		return baseID;
 	}
 	
 }
@@ -1,6 +1,8 @@
 package cn.edu.tsinghua.cs.htm;
 
 import cn.edu.tsinghua.cs.htm.operations.Cover;
+import cn.edu.tsinghua.cs.htm.operations.Encode;
+import cn.edu.tsinghua.cs.htm.operations.Server;
 import cn.edu.tsinghua.cs.htm.utils.ProgramDriver;
 
 public class Main {
@@ -16,6 +18,14 @@ public class Main {
 			pgd.addClass("Cover", Cover.class,
 					"Covers a convex specified by 3 or more 3D points "
 					+ "and returns HTMid ranges of covering Trixels.");
+			pgd.addClass("Encode", Encode.class,
+					"Appends an HTMid column to a catalog of points "
+					+ "read from a memory-mapped file.");
+			pgd.addClass("Mesh", Mesh.class,
+					"Reports memory cost of each level of the precomputed mesh.");
+			pgd.addClass("Server", Server.class,
+					"Serves cover and encode requests on a loopback port "
+					+ "with a warm mesh and cover cache.");
 			
 			pgd.driver(args);
 			
@@ -0,0 +1,316 @@
+package cn.edu.tsinghua.cs.htm;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import cn.edu.tsinghua.cs.htm.shapes.Cartesian;
+import cn.edu.tsinghua.cs.htm.shapes.Halfspace;
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+import cn.edu.tsinghua.cs.htm.utils.Constants;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+
+/**
+ * Precomputed upper levels of the mesh.
+ * For every Trixel down to maxLevel, stores its corners and its bounding
+ * circle in flat double arrays, indexed by
+ * HTMid minus the first HTMid of the level.
+ * Levels are built lazily on first use and never change afterwards.
+ * Values are computed with the same arithmetic as Trixel.expand() and
+ * Trixel.getBoundingCircle(), so they are identical to what a Trixel computes.
+ * Trixels and bounding circles asked for as objects are made from the arrays.
+ * Down to objectLevelLimit they are made once and kept, deeper ones are made
+ * on every call, as keeping them would cost far more than the arrays.
+ */
+public class Mesh {
+
+	/**
+	 * Levels deeper than this won't fit in int-indexed arrays
+	 */
+	public static final int levelLimit = 12;
+
+	/**
+	 * Deepest level whose Trixel and Halfspace objects are kept
+	 */
+	public static final int objectLevelLimit = 4;
+
+	/**
+	 * Doubles stored per Trixel: 9 for corners, 4 for bounding circle
+	 */
+	private static final int doublesPerTrixel = 9 + 4;
+
+	/**
+	 * Bytes per kept Trixel of its objects (Trixel, Cartesians, Arcs, HTMid,
+	 * Halfspace) and the 2 references to them, as measured on a 64-bit JVM
+	 * with compressed references
+	 */
+	private static final int objectBytesPerTrixel = 496 + 2 * 4;
+
+	private final int maxLevel;
+
+	/**
+	 * 3 corners per Trixel, x, y, z each
+	 */
+	final double[][] corners;
+
+	/**
+	 * Bounding circle per Trixel: x, y, z of vector, and distance
+	 */
+	final double[][] circles;
+
+	/**
+	 * Objects made from the arrays on request, null until then
+	 */
+	private final AtomicReferenceArray<Trixel>[] trixels;
+
+	private final AtomicReferenceArray<Halfspace>[] circleObjects;
+
+	/**
+	 * Number of levels built so far
+	 */
+	private volatile int builtLevels;
+
+	@SuppressWarnings("unchecked")
+	Mesh(double[] topCorners, int maxLevel) {
+		if (maxLevel < 0 || maxLevel > levelLimit) {
+			throw new IllegalArgumentException("Mesh level out of range: " + maxLevel);
+		}
+		this.maxLevel = maxLevel;
+		corners = new double[maxLevel + 1][];
+		circles = new double[maxLevel + 1][];
+		int objectLevels = Math.min(maxLevel, objectLevelLimit) + 1;
+		trixels = (AtomicReferenceArray<Trixel>[]) new AtomicReferenceArray<?>[objectLevels];
+		circleObjects = (AtomicReferenceArray<Halfspace>[]) new AtomicReferenceArray<?>[objectLevels];
+		corners[0] = topCorners.clone();
+		fillDerived(0);
+		builtLevels = 1;
+	}
+
+	public int getMaxLevel() {
+		return maxLevel;
+	}
+
+	/**
+	 * If Trixels at this level are in the table
+	 * @param level
+	 * @return true if level <= maxLevel
+	 */
+	public boolean covers(int level) {
+		return level >= 0 && level <= maxLevel;
+	}
+
+	/**
+	 * Make sure the given level is built
+	 * @param level no more than maxLevel
+	 */
+	void ensureLevel(int level) {
+		if (level < builtLevels) {
+			return;
+		}
+		synchronized (this) {
+			while (builtLevels <= level) {
+				int child = builtLevels;
+				buildLevel(child);
+				builtLevels = child + 1;
+			}
+		}
+	}
+
+	/**
+	 * Index of a Trixel in the arrays of its level
+	 * @param hid HTMid in long form
+	 * @param level level of hid
+	 * @return index
+	 */
+	static int indexOf(long hid, int level) {
+		return (int) (hid - (8L << (2 * level)));
+	}
+
+	/**
+	 * Get a corner of a Trixel in the table
+	 * @param hid HTMid in long form
+	 * @param level level of hid, no more than maxLevel
+	 * @param i 0, 1 or 2
+	 * @return corner as Cartesian
+	 */
+	public Cartesian getCorner(long hid, int level, int i) {
+		ensureLevel(level);
+		int offset = indexOf(hid, level) * 9 + i * 3;
+		double[] c = corners[level];
+		return new Cartesian(c[offset], c[offset + 1], c[offset + 2]);
+	}
+
+	/**
+	 * Get the bounding circle of a Trixel in the table
+	 * Down to objectLevelLimit, made on the first call and the same object afterwards
+	 * @param hid HTMid in long form
+	 * @param level level of hid, no more than maxLevel
+	 * @return bounding circle as Halfspace, same as Trixel.getBoundingCircle()
+	 */
+	public Halfspace getBoundingCircle(long hid, int level) {
+		ensureLevel(level);
+		int index = indexOf(hid, level);
+		if (level > objectLevelLimit) {
+			return makeBoundingCircle(index, level);
+		}
+		AtomicReferenceArray<Halfspace> cache = circleObjects[level];
+		Halfspace circle = cache.get(index);
+		if (circle == null) {
+			cache.compareAndSet(index, null, makeBoundingCircle(index, level));
+			circle = cache.get(index);
+		}
+		return circle;
+	}
+
+	/**
+	 * Get a Trixel in the table
+	 * Equal to the Trixel that Trixel.expand() would compute.
+	 * Down to objectLevelLimit, made on the first call and the same object afterwards
+	 * @param hid HTMid in long form
+	 * @param level level of hid, no more than maxLevel
+	 * @return Trixel with its bounding circle
+	 */
+	public Trixel getTrixel(long hid, int level) {
+		ensureLevel(level);
+		int index = indexOf(hid, level);
+		if (level > objectLevelLimit) {
+			return makeTrixel(hid, index, level, makeBoundingCircle(index, level));
+		}
+		AtomicReferenceArray<Trixel> cache = trixels[level];
+		Trixel trixel = cache.get(index);
+		if (trixel == null) {
+			cache.compareAndSet(index, null,
+					makeTrixel(hid, index, level, getBoundingCircle(hid, level)));
+			trixel = cache.get(index);
+		}
+		return trixel;
+	}
+
+	private Halfspace makeBoundingCircle(int index, int level) {
+		int offset = index * 4;
+		double[] b = circles[level];
+		return new Halfspace(new Cartesian(b[offset], b[offset + 1], b[offset + 2]), b[offset + 3]);
+	}
+
+	private Trixel makeTrixel(long hid, int index, int level, Halfspace boundingCircle) {
+		int o = index * 9;
+		double[] c = corners[level];
+		return new Trixel(new Cartesian(c[o], c[o + 1], c[o + 2]),
+				new Cartesian(c[o + 3], c[o + 4], c[o + 5]),
+				new Cartesian(c[o + 6], c[o + 7], c[o + 8]),
+				new HTMid(hid), boundingCircle);
+	}
+
+	private void buildLevel(int level) {
+		double[] parents = corners[level - 1];
+		double[] children = new double[parents.length * 4];
+		int count = parents.length / 9;
+		for (int i = 0; i < count; i++) {
+			int p = i * 9;
+			double v0x = parents[p], v0y = parents[p + 1], v0z = parents[p + 2];
+			double v1x = parents[p + 3], v1y = parents[p + 4], v1z = parents[p + 5];
+			double v2x = parents[p + 6], v2y = parents[p + 7], v2z = parents[p + 8];
+			double w0x = (v1x + v2x) / 2, w0y = (v1y + v2y) / 2, w0z = (v1z + v2z) / 2;
+			double w1x = (v0x + v2x) / 2, w1y = (v0y + v2y) / 2, w1z = (v0z + v2z) / 2;
+			double w2x = (v0x + v1x) / 2, w2y = (v0y + v1y) / 2, w2z = (v0z + v1z) / 2;
+
+			// Same children as Trixel.expand()
+			int c = i * 36;
+			put(children, c, v0x, v0y, v0z, w2x, w2y, w2z, w1x, w1y, w1z);
+			put(children, c + 9, v1x, v1y, v1z, w0x, w0y, w0z, w2x, w2y, w2z);
+			put(children, c + 18, v2x, v2y, v2z, w1x, w1y, w1z, w0x, w0y, w0z);
+			put(children, c + 27, w0x, w0y, w0z, w1x, w1y, w1z, w2x, w2y, w2z);
+		}
+		corners[level] = children;
+		fillDerived(level);
+	}
+
+	private static void put(double[] a, int offset, double... values) {
+		System.arraycopy(values, 0, a, offset, values.length);
+	}
+
+	/**
+	 * Compute bounding circles from corners of a level
+	 */
+	private void fillDerived(int level) {
+		double[] c = corners[level];
+		int count = c.length / 9;
+		double[] b = new double[count * 4];
+		for (int i = 0; i < count; i++) {
+			int o = i * 9;
+			// Same arithmetic as Trixel.getBoundingCircle()
+			double e1x = c[o + 3] - c[o], e1y = c[o + 4] - c[o + 1], e1z = c[o + 5] - c[o + 2];
+			double e2x = c[o + 6] - c[o + 3], e2y = c[o + 7] - c[o + 4], e2z = c[o + 8] - c[o + 5];
+			double nx = e1y * e2z - e1z * e2y;
+			double ny = e1z * e2x - e1x * e2z;
+			double nz = e1x * e2y - e1y * e2x;
+			double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+			nx = nx * Constants.scale / len;
+			ny = ny * Constants.scale / len;
+			nz = nz * Constants.scale / len;
+			b[i * 4] = nx;
+			b[i * 4 + 1] = ny;
+			b[i * 4 + 2] = nz;
+			b[i * 4 + 3] = (c[o] * nx + c[o + 1] * ny + c[o + 2] * nz) / Constants.scale;
+		}
+		circles[level] = b;
+		if (level <= objectLevelLimit) {
+			trixels[level] = new AtomicReferenceArray<Trixel>(count);
+			circleObjects[level] = new AtomicReferenceArray<Halfspace>(count);
+		}
+	}
+
+	/**
+	 * Number of Trixels at a level
+	 * @param level
+	 * @return 8 * 4^level
+	 */
+	public static long numOfTrixels(int level) {
+		return 8L << (2 * level);
+	}
+
+	/**
+	 * Memory taken by one level of the table
+	 * Down to objectLevelLimit, counts the kept objects as if all were made.
+	 * Their size is an estimate, it varies between JVMs.
+	 * @param level
+	 * @return size in bytes
+	 */
+	public static long bytesOfLevel(int level) {
+		long bytes = numOfTrixels(level) * doublesPerTrixel * 8;
+		if (level <= objectLevelLimit) {
+			bytes += numOfTrixels(level) * objectBytesPerTrixel;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Memory taken by levels built so far
+	 * @return size in bytes
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (int level = 0; level < builtLevels; level++) {
+			bytes += bytesOfLevel(level);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Print the memory cost of each level so a cutoff can be chosen
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Mesh mesh = HTM.getInstance().getMesh();
+		System.out.println("Mesh level in use: " + mesh.getMaxLevel()
+				+ " (set with -D" + HTM.meshLevelProperty + "=[num])");
+		System.out.println("Objects kept down to level " + objectLevelLimit
+				+ ", about " + objectBytesPerTrixel + " bytes per Trixel");
+		System.out.println("level, trixels, bytes, total bytes");
+		long total = 0;
+		for (int level = 0; level <= levelLimit; level++) {
+			total += bytesOfLevel(level);
+			System.out.println(level + ", " + numOfTrixels(level) + ", "
+					+ bytesOfLevel(level) + ", " + total);
+		}
+	}
+
+}
@@ -0,0 +1,349 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.util.*;
+
+import cn.edu.tsinghua.cs.htm.HTM;
+import cn.edu.tsinghua.cs.htm.shapes.Convex;
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+import cn.edu.tsinghua.cs.htm.utils.HTMBitmap;
+import cn.edu.tsinghua.cs.htm.utils.HTMRangeSet;
+import cn.edu.tsinghua.cs.htm.utils.HTMRanges;
+import cn.edu.tsinghua.cs.htm.utils.Markup;
+
+/**
+ * Cover a Convex with Trixels under a budget of ranges and/or Trixels
+ * Instead of refining every Partial Trixel level by level,
+ * always refine the Partial Trixel whose Outside children
+ * remove the most area, and stop when refining would exceed the budget.
+ * The area of the remaining Partial Trixels bounds the false positive area.
+ */
+public class AdaptiveCover {
+
+	private Convex convex;
+
+	/**
+	 * Partial Trixels at this level are not refined
+	 */
+	private int maxLevel;
+
+	/**
+	 * Level of HTMids in ranges
+	 */
+	private int level;
+
+	/**
+	 * Maximum number of compacted ranges, no limit if <= 0
+	 */
+	private int maxRanges;
+
+	/**
+	 * Maximum number of Full and Partial Trixels, no limit if <= 0
+	 */
+	private int maxTrixels;
+
+	private List<Trixel> listOfInners;
+
+	private List<Trixel> listOfPartials;
+
+	private PriorityQueue<Candidate> candidates;
+
+	/**
+	 * Ranges at level of all Full and Partial Trixels, lower bound to upper bound
+	 * Kept uncompacted, number of compacted ranges is
+	 * its size minus adjacentCount
+	 */
+	private TreeMap<Long, Long> ranges;
+
+	private int adjacentCount;
+
+	private double fullArea, partialArea;
+
+	private boolean alreadyRun;
+
+	/**
+	 * @param convex
+	 * @param maxLevel maximum HTMid depth, no more than level
+	 * @param level level of HTMids in ranges
+	 * @param maxRanges maximum number of ranges, no limit if <= 0
+	 * @param maxTrixels maximum number of Trixels, no limit if <= 0
+	 */
+	public AdaptiveCover(Convex convex, int maxLevel, int level,
+			int maxRanges, int maxTrixels) {
+		this.convex = convex;
+		this.maxLevel = Math.min(maxLevel, level);
+		this.level = level;
+		this.maxRanges = maxRanges;
+		this.maxTrixels = maxTrixels;
+		alreadyRun = false;
+	}
+
+	private void init() {
+		listOfInners = new ArrayList<Trixel>();
+		listOfPartials = new ArrayList<Trixel>();
+		candidates = new PriorityQueue<Candidate>();
+		ranges = new TreeMap<Long, Long>();
+		adjacentCount = 0;
+		fullArea = 0;
+		partialArea = 0;
+		alreadyRun = false;
+	}
+
+	/**
+	 * Calculate the Trixel cover
+	 * Call this method before calling getTrixels(), getHTMRanges(), etc.
+	 */
+	public void run() {
+		init();
+		if (convex == null) {
+			return;
+		}
+
+		HTM htm = HTM.getInstance();
+		for (int i = 0; i < 8; i++) {
+			Trixel t = htm.getTopTrixel(i);
+			accept(t, t.getMarkup(convex), 0);
+		}
+
+		while (!candidates.isEmpty()) {
+			Candidate best = candidates.poll();
+
+			// Try replacing best with its children
+			int trixelCount = listOfInners.size() + listOfPartials.size() + candidates.size();
+			removeRange(best.trixel, best.level);
+			for (int i = 0; i < 4; i++) {
+				if (best.markups[i] == Markup.Full || best.markups[i] == Markup.Partial) {
+					addRange(best.children.get(i), best.level + 1);
+					trixelCount++;
+				}
+			}
+
+			if (overBudget(trixelCount)) {
+				// Undo and stop
+				for (int i = 0; i < 4; i++) {
+					if (best.markups[i] == Markup.Full || best.markups[i] == Markup.Partial) {
+						removeRange(best.children.get(i), best.level + 1);
+					}
+				}
+				addRange(best.trixel, best.level);
+				candidates.add(best);
+				break;
+			}
+
+			partialArea -= best.area;
+			for (int i = 0; i < 4; i++) {
+				Trixel child = best.children.get(i);
+				switch (best.markups[i]) {
+				case Full:
+					listOfInners.add(child);
+					fullArea += child.getArea();
+					break;
+				case Partial:
+					addPartial(child, best.level + 1);
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		while (!candidates.isEmpty()) {
+			listOfPartials.add(candidates.poll().trixel);
+		}
+		candidates = null;
+		ranges = null;
+		alreadyRun = true;
+	}
+
+	private boolean overBudget(int trixelCount) {
+		if (maxTrixels > 0 && trixelCount > maxTrixels) {
+			return true;
+		}
+		if (maxRanges > 0 && ranges.size() - adjacentCount > maxRanges) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Take in a top Trixel
+	 */
+	private void accept(Trixel t, Markup markup, int tLevel) {
+		switch (markup) {
+		case Full:
+			listOfInners.add(t);
+			fullArea += t.getArea();
+			addRange(t, tLevel);
+			break;
+		case Partial:
+			addRange(t, tLevel);
+			addPartial(t, tLevel);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Take in a Partial Trixel whose range is already added
+	 */
+	private void addPartial(Trixel t, int tLevel) {
+		partialArea += t.getArea();
+		if (tLevel < maxLevel) {
+			candidates.add(new Candidate(t, tLevel));
+		} else {
+			listOfPartials.add(t);
+		}
+	}
+
+	private void addRange(Trixel t, int tLevel) {
+		int shiftBits = 2 * (level - tLevel);
+		long lo = t.getHTMid().getId() << shiftBits;
+		long hi = lo + ((1L << shiftBits) - 1);
+		Map.Entry<Long, Long> lower = ranges.lowerEntry(lo);
+		if (lower != null && lower.getValue() == lo - 1) {
+			adjacentCount++;
+		}
+		if (ranges.containsKey(hi + 1)) {
+			adjacentCount++;
+		}
+		ranges.put(lo, hi);
+	}
+
+	private void removeRange(Trixel t, int tLevel) {
+		int shiftBits = 2 * (level - tLevel);
+		long lo = t.getHTMid().getId() << shiftBits;
+		long hi = ranges.remove(lo);
+		Map.Entry<Long, Long> lower = ranges.lowerEntry(lo);
+		if (lower != null && lower.getValue() == lo - 1) {
+			adjacentCount--;
+		}
+		if (ranges.containsKey(hi + 1)) {
+			adjacentCount--;
+		}
+	}
+
+	/**
+	 * A Partial Trixel which can still be refined
+	 * Its children are classified in advance to know the gain of refining it
+	 */
+	private class Candidate implements Comparable<Candidate> {
+
+		final Trixel trixel;
+
+		final int level;
+
+		final double area;
+
+		final List<Trixel> children;
+
+		final Markup[] markups;
+
+		/**
+		 * Area removed from the cover by refining, i.e. of Outside children
+		 */
+		final double gain;
+
+		Candidate(Trixel trixel, int level) {
+			this.trixel = trixel;
+			this.level = level;
+			this.area = trixel.getArea();
+			children = trixel.expand();
+			markups = new Markup[4];
+			double outsideArea = 0;
+			for (int i = 0; i < 4; i++) {
+				markups[i] = children.get(i).getMarkup(convex);
+				if (markups[i] != Markup.Full && markups[i] != Markup.Partial) {
+					outsideArea += children.get(i).getArea();
+				}
+			}
+			gain = outsideArea;
+		}
+
+		/**
+		 * Larger gain first, then larger area, then smaller HTMid
+		 */
+		@Override
+		public int compareTo(Candidate o) {
+			int cmp = Double.compare(o.gain, gain);
+			if (cmp != 0) {
+				return cmp;
+			}
+			cmp = Double.compare(o.area, area);
+			if (cmp != 0) {
+				return cmp;
+			}
+			return trixel.getHTMid().compareTo(o.trixel.getHTMid());
+		}
+
+	}
+
+	/**
+	 * Get all covering Trixels, no matter Full or Partial
+	 * @return List of covering Trixels, null if failed
+	 */
+	public List<Trixel> getTrixels() {
+		if (!alreadyRun) {
+			return null;
+		}
+		List<Trixel> result = new ArrayList<Trixel>(listOfInners);
+		result.addAll(listOfPartials);
+		return result;
+	}
+
+	/**
+	 * Get specific kind of covering Trixels
+	 * @param markUp Full or Partial
+	 * @return List of covering Trixels, null if failed
+	 */
+	public List<Trixel> getTrixels(Markup markUp) {
+		if (!alreadyRun) {
+			return null;
+		}
+		switch (markUp) {
+		case Full:
+			return new ArrayList<Trixel>(listOfInners);
+		case Partial:
+			return new ArrayList<Trixel>(listOfPartials);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Get the compacted ranges of all covering Trixels
+	 * @return HTMRanges at level, null if failed
+	 */
+	public HTMRanges getHTMRanges() {
+		if (!alreadyRun) {
+			return null;
+		}
+		return new HTMRanges(getTrixels(), level);
+	}
+
+	/**
+	 * Get all covering Trixels in the smaller of HTMRanges and HTMBitmap
+	 * @return HTMRangeSet at level, null if failed
+	 */
+	public HTMRangeSet getHTMRangeSet() {
+		HTMRanges ranges = getHTMRanges();
+		return ranges == null ? null : HTMBitmap.choose(ranges);
+	}
+
+	/**
+	 * Area of Partial Trixels, in steradians
+	 * An upper bound of the area covered but not inside the Convex
+	 * @return excess area, NaN if not run
+	 */
+	public double getExcessArea() {
+		return alreadyRun ? partialArea : Double.NaN;
+	}
+
+	/**
+	 * Area of Full Trixels, in steradians
+	 * @return area, NaN if not run
+	 */
+	public double getFullArea() {
+		return alreadyRun ? fullArea : Double.NaN;
+	}
+
+}
@@ -0,0 +1,222 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.util.*;
+
+import cn.edu.tsinghua.cs.htm.HTM;
+import cn.edu.tsinghua.cs.htm.Mesh;
+import cn.edu.tsinghua.cs.htm.shapes.Convex;
+import cn.edu.tsinghua.cs.htm.shapes.Halfspace;
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+import cn.edu.tsinghua.cs.htm.utils.HTMRanges;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+import cn.edu.tsinghua.cs.htm.utils.HTMidSet;
+import cn.edu.tsinghua.cs.htm.utils.Sign;
+
+/**
+ * Cover many Convexes in one traversal of the mesh
+ * Each Trixel is expanded once, carrying the indices of the queries
+ * for which it is still Partial. Only those queries are tested
+ * against its children, and a query whose bounding circle misses
+ * the bounding circle of a child is dropped without computing the markup,
+ * unless the query is mixed or negative.
+ * Results are the same as running a Cover for each Convex,
+ * with the Trixels of a query in depth-first order. Only their HTMids
+ * are kept, as Trixel objects of all queries at once would keep
+ * the garbage collector busy, and getTrixels() makes them again.
+ */
+public class BatchCover {
+
+	private List<Convex> convexes;
+
+	/**
+	 * Bounding circle of each Convex, null if it has none
+	 */
+	private Halfspace[] boundingCircles;
+
+	private int maxLevel;
+
+	/**
+	 * HTMids of Full and Partial Trixels of each query, null while it has none
+	 */
+	private IdList[] inners;
+
+	private IdList[] partials;
+
+	private boolean alreadyRun;
+
+	public BatchCover(List<Convex> convexes, int maxLevel) {
+		this.convexes = new ArrayList<Convex>(convexes);
+		this.maxLevel = maxLevel;
+		alreadyRun = false;
+	}
+
+	/**
+	 * Calculate the Trixel covers of all queries
+	 * Call this method before calling getTrixels(), getHTMRanges(), etc.
+	 */
+	public void run() {
+		int size = convexes.size();
+		inners = new IdList[size];
+		partials = new IdList[size];
+		boundingCircles = new Halfspace[size];
+		int[] active = new int[size];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			Convex convex = convexes.get(i);
+			if (convex != null) {
+				// Markups of mixed and negative Convexes may be Partial
+				// away from them, skipping those Trixels would change the cover
+				Sign sign = convex.getSign();
+				if (sign == Sign.Positive || sign == Sign.Zero) {
+					boundingCircles[i] = convex.getBoundingCircle();
+				}
+				active[count++] = i;
+			}
+		}
+
+		HTM htm = HTM.getInstance();
+		int lastLevel = Math.max(maxLevel, 0);
+		for (int i = 0; i < 8; i++) {
+			cover(htm.getTopTrixel(i), 0, lastLevel, active, count);
+		}
+		alreadyRun = true;
+	}
+
+	/**
+	 * Mark a Trixel against the active queries and go down for
+	 * those which are Partial
+	 * @param active indices of the queries, ascending
+	 * @param count number of entries of active in use
+	 */
+	private void cover(Trixel t, int level, int lastLevel, int[] active, int count) {
+		Halfspace trixelCircle = t.getBoundingCircle();
+		int[] partial = null;
+		int partialCount = 0;
+		for (int k = 0; k < count; k++) {
+			int q = active[k];
+			if (boundingCircles[q] != null && boundingCircles[q].exclusive(trixelCircle)) {
+				continue;
+			}
+			switch (t.getMarkup(convexes.get(q))) {
+			case Full:
+				add(inners, q, t);
+				break;
+			case Partial:
+				if (level >= lastLevel) {
+					add(partials, q, t);
+				} else {
+					if (partial == null) {
+						partial = new int[count - k];
+					}
+					partial[partialCount++] = q;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		if (partial != null) {
+			for (Trixel child : t.expand()) {
+				cover(child, level + 1, lastLevel, partial, partialCount);
+			}
+		}
+	}
+
+	private static void add(IdList[] lists, int q, Trixel t) {
+		if (lists[q] == null) {
+			lists[q] = new IdList();
+		}
+		lists[q].add(t.getHTMid().getId());
+	}
+
+	/**
+	 * Growable array of HTMids in long form
+	 */
+	private static class IdList {
+
+		long[] ids = new long[16];
+
+		int size = 0;
+
+		void add(long hid) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = hid;
+		}
+
+	}
+
+	/**
+	 * Number of queries
+	 * @return size
+	 */
+	public int size() {
+		return convexes.size();
+	}
+
+	/**
+	 * Get all covering Trixels of a query, no matter Full or Partial
+	 * @param query index of the Convex
+	 * @return List of covering Trixels, null if failed
+	 */
+	public List<Trixel> getTrixels(int query) {
+		if (!alreadyRun) {
+			return null;
+		}
+		long[] ids = getIds(query);
+		List<Trixel> result = new ArrayList<Trixel>(ids.length);
+		for (long hid : ids) {
+			result.add(makeTrixel(hid));
+		}
+		return result;
+	}
+
+	/**
+	 * Same Trixel as the traversal met, expanded down from the Mesh
+	 */
+	private static Trixel makeTrixel(long hid) {
+		Mesh mesh = HTM.getInstance().getMesh();
+		int level = HTMid.getLevel(hid);
+		int meshLevel = Math.min(level, mesh.getMaxLevel());
+		Trixel t = mesh.getTrixel(HTMid.truncate(hid, meshLevel), meshLevel);
+		for (int l = meshLevel + 1; l <= level; l++) {
+			t = t.expand().get((int) (HTMid.truncate(hid, l) & 3));
+		}
+		return t;
+	}
+
+	/**
+	 * HTMids of all covering Trixels of a query, Full ones first
+	 */
+	private long[] getIds(int query) {
+		IdList inner = inners[query], partial = partials[query];
+		int innerSize = inner == null ? 0 : inner.size;
+		int partialSize = partial == null ? 0 : partial.size;
+		long[] ids = new long[innerSize + partialSize];
+		if (inner != null) {
+			System.arraycopy(inner.ids, 0, ids, 0, innerSize);
+		}
+		if (partial != null) {
+			System.arraycopy(partial.ids, 0, ids, innerSize, partialSize);
+		}
+		return ids;
+	}
+
+	/**
+	 * Get compacted ranges of every query
+	 * @param level level of HTMids in ranges
+	 * @return one HTMRanges per query in the order given, null if failed
+	 */
+	public List<HTMRanges> getHTMRanges(int level) {
+		if (!alreadyRun) {
+			return null;
+		}
+		List<HTMRanges> result = new ArrayList<HTMRanges>(convexes.size());
+		for (int q = 0; q < convexes.size(); q++) {
+			result.add(new HTMidSet(getIds(q)).toRanges(level));
+		}
+		return result;
+	}
+
+}
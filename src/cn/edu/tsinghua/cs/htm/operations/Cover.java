@@ -1,18 +1,30 @@
 package cn.edu.tsinghua.cs.htm.operations;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import cn.edu.tsinghua.cs.htm.HTM;
 import cn.edu.tsinghua.cs.htm.shapes.Convex;
+import cn.edu.tsinghua.cs.htm.shapes.Halfspace;
+import cn.edu.tsinghua.cs.htm.shapes.Region;
 import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+import cn.edu.tsinghua.cs.htm.shapes.TrixelBuffer;
+import cn.edu.tsinghua.cs.htm.utils.HTMBitmap;
 import cn.edu.tsinghua.cs.htm.utils.HTMid;
+import cn.edu.tsinghua.cs.htm.utils.HTMidSet;
+import cn.edu.tsinghua.cs.htm.utils.HTMRangeSet;
 import cn.edu.tsinghua.cs.htm.utils.HTMRanges;
 import cn.edu.tsinghua.cs.htm.utils.Markup;
 import cn.edu.tsinghua.cs.htm.utils.Pair;
+import cn.edu.tsinghua.cs.htm.utils.RangeConsumer;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -30,6 +42,16 @@ public class Cover {
 	
 	private Convex convex;
 	
+	/**
+	 * Circular region to cover instead of a Convex
+	 */
+	private Halfspace circle;
+	
+	/**
+	 * Union of Convexes to cover instead of a single Convex
+	 */
+	private Region region;
+	
 	private List<Trixel> listOfInners;
 	
 	private Stack<List<Trixel> > stackOfPartialLists;
@@ -48,6 +70,31 @@ public class Cover {
 		alreadyRun = false;
 	}
 	
+	/**
+	 * Cover a circular region, e.g. a cone search
+	 * Trixels are marked against the single Halfspace,
+	 * which is cheaper than against a Convex
+	 * @param circle see Halfspace.fromCircle()
+	 * @param maxLevel
+	 */
+	public Cover(Halfspace circle, int maxLevel) {
+		this.circle = circle;
+		this.maxLevel = maxLevel;
+		alreadyRun = false;
+	}
+	
+	/**
+	 * Cover a union of Convexes in a single pass
+	 * A Trixel is classified once against all pieces
+	 * @param region
+	 * @param maxLevel
+	 */
+	public Cover(Region region, int maxLevel) {
+		this.region = region;
+		this.maxLevel = maxLevel;
+		alreadyRun = false;
+	}
+	
 	private void init() {
 		listOfInners = new ArrayList<Trixel>();
 		stackOfPartialLists = new Stack<List<Trixel> >();
@@ -78,7 +125,7 @@ public class Cover {
 	public void run() {
 		init();
 		halt = false;
-		if (convex == null) {
+		if (!hasShape()) {
 			return;
 		}
 		while (!halt && queue.size() > 0) {
@@ -88,6 +135,42 @@ public class Cover {
 		alreadyRun = true;
 	}
 	
+	/**
+	 * Continue a finished cover to a greater maximum depth
+	 * Full Trixels are kept and only the last Partial list is expanded,
+	 * so only the new levels are computed.
+	 * Gives the same results as run() with the new depth.
+	 * Runs from scratch if not run yet.
+	 * @param maxLevel new maximum HTMid depth
+	 */
+	public void deepen(int maxLevel) {
+		if (!alreadyRun) {
+			this.maxLevel = maxLevel;
+			run();
+			return;
+		}
+		int lastLevel = Math.max(this.maxLevel, 0);
+		if (maxLevel <= lastLevel) {
+			return;
+		}
+		
+		queue = new LinkedList<Trixel>();
+		for (Trixel t : stackOfPartialLists.peek()) {
+			queue.addAll(t.expand());
+		}
+		this.maxLevel = maxLevel;
+		currentLevel = lastLevel;
+		previousLevel = lastLevel + 1;
+		
+		alreadyRun = false;
+		halt = false;
+		while (!halt && queue.size() > 0) {
+			step();
+			evaluateCurrentLevel();
+		}
+		alreadyRun = true;
+	}
+	
 	private void step() {
 		boolean levelFinished = false;
 		
@@ -108,7 +191,7 @@ public class Cover {
 				queue.remove();
 				boolean terminal = false;
 				
-				switch (t.getMarkup(convex)) {
+				switch (getMarkup(t)) {
 				case Full:
 					listOfInners.add(t);
 					terminal = true;
@@ -130,6 +213,310 @@ public class Cover {
 		}
 	}
 	
+	private boolean hasShape() {
+		return convex != null || circle != null || region != null;
+	}
+	
+	private Markup getMarkup(Trixel t) {
+		if (circle != null) {
+			return t.getMarkup(circle);
+		}
+		if (region != null) {
+			return t.getMarkup(region);
+		}
+		return t.getMarkup(convex);
+	}
+	
+	/**
+	 * Same as getMarkup(Trixel) for an entry of a TrixelBuffer
+	 */
+	private Markup classify(TrixelBuffer buffer, int i) {
+		if (circle != null) {
+			return buffer.classify(i, circle);
+		}
+		if (region != null) {
+			return buffer.classify(i, region);
+		}
+		return buffer.classify(i, convex);
+	}
+	
+	/**
+	 * Calculate the Trixel cover in parallel on the common fork/join pool
+	 * Gives the same results as run()
+	 */
+	public void runParallel() {
+		runParallel(ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Calculate the Trixel cover in parallel
+	 * Subtrees of the 8 top Trixels and of every Partial Trixel are
+	 * independent, so they are covered by separate fork/join tasks.
+	 * Gives the same results as run(), in the same order
+	 * @param pool fork/join pool to run in
+	 */
+	public void runParallel(ForkJoinPool pool) {
+		init();
+		queue.clear();
+		if (!hasShape()) {
+			return;
+		}
+		
+		HTM htm = HTM.getInstance();
+		final List<CoverTask> tasks = new ArrayList<CoverTask>();
+		for (int i = 0; i < 8; i++) {
+			tasks.add(new CoverTask(htm.getTopTrixel(i), 0));
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		
+		List<Trixel> partials = new ArrayList<Trixel>();
+		for (CoverTask task : tasks) {
+			listOfInners.addAll(task.inners);
+			partials.addAll(task.partials);
+		}
+		
+		// Same order as run(): by level, then by HTMid,
+		// which is simply ascending HTMid
+		Comparator<Trixel> byHTMid = new Comparator<Trixel>() {
+			@Override
+			public int compare(Trixel o1, Trixel o2) {
+				return o1.getHTMid().compareTo(o2.getHTMid());
+			}
+		};
+		Collections.sort(listOfInners, byHTMid);
+		Collections.sort(partials, byHTMid);
+		
+		stackOfPartialLists.push(partials);
+		currentLevel = Math.max(maxLevel, 0);
+		alreadyRun = true;
+	}
+	
+	/**
+	 * Calculate the Trixel cover keeping the frontier in a TrixelBuffer
+	 * Trixels of a level are kept as ids and corners in primitive arrays
+	 * and mostly classified there, and only Full Trixels and Partial
+	 * Trixels of the last level are made Trixel objects,
+	 * so deep covers make much less garbage.
+	 * Gives the same results as run(), in the same order
+	 */
+	public void runCompact() {
+		init();
+		queue.clear();
+		if (!hasShape()) {
+			return;
+		}
+		
+		HTM htm = HTM.getInstance();
+		TrixelBuffer frontier = new TrixelBuffer(1024);
+		TrixelBuffer next = new TrixelBuffer(1024);
+		for (int i = 0; i < 8; i++) {
+			frontier.add(htm.getTopTrixel(i));
+		}
+		
+		int lastLevel = Math.max(maxLevel, 0);
+		List<Trixel> partials = new ArrayList<Trixel>();
+		for (int level = 0; frontier.size() > 0; level++) {
+			for (int i = 0; i < frontier.size(); i++) {
+				switch (classify(frontier, i)) {
+				case Full:
+					listOfInners.add(frontier.getTrixel(i));
+					break;
+				case Partial:
+					if (level >= lastLevel) {
+						partials.add(frontier.getTrixel(i));
+					} else {
+						frontier.addChildren(i, next);
+					}
+					break;
+				default:
+					break;
+				}
+			}
+			TrixelBuffer swap = frontier;
+			frontier = next;
+			next = swap;
+			next.clear();
+		}
+		
+		stackOfPartialLists.push(partials);
+		currentLevel = lastLevel;
+		alreadyRun = true;
+	}
+	
+	/**
+	 * Covers the subtree of one Trixel
+	 * Forks a task for each child of a Partial Trixel,
+	 * until few levels are left, then covers them in this task
+	 */
+	private class CoverTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Below this many remaining levels subtrees are covered sequentially
+		 */
+		private static final int sequentialLevels = 3;
+		
+		private final Trixel trixel;
+		
+		private final int level;
+		
+		final List<Trixel> inners, partials;
+		
+		CoverTask(Trixel trixel, int level) {
+			this.trixel = trixel;
+			this.level = level;
+			inners = new ArrayList<Trixel>();
+			partials = new ArrayList<Trixel>();
+		}
+		
+		@Override
+		protected void compute() {
+			int lastLevel = Math.max(maxLevel, 0);
+			if (lastLevel - level <= sequentialLevels) {
+				cover(trixel, level, lastLevel);
+				return;
+			}
+			
+			switch (getMarkup(trixel)) {
+			case Full:
+				inners.add(trixel);
+				break;
+			case Partial:
+				List<CoverTask> subtasks = new ArrayList<CoverTask>();
+				for (Trixel child : trixel.expand()) {
+					subtasks.add(new CoverTask(child, level + 1));
+				}
+				invokeAll(subtasks);
+				for (CoverTask subtask : subtasks) {
+					inners.addAll(subtask.inners);
+					partials.addAll(subtask.partials);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		
+		private void cover(Trixel t, int tLevel, int lastLevel) {
+			switch (getMarkup(t)) {
+			case Full:
+				inners.add(t);
+				break;
+			case Partial:
+				if (tLevel >= lastLevel) {
+					partials.add(t);
+				} else {
+					for (Trixel child : t.expand()) {
+						cover(child, tLevel + 1, lastLevel);
+					}
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		
+	}
+	
+	/**
+	 * Cover depth-first and stream the ranges instead of keeping Trixels
+	 * Children are visited in HTMid order, so the ranges come out sorted
+	 * and merged, the same as getHTMidPairs(level) after run().
+	 * Memory is bounded by the depth rather than the number of Trixels.
+	 * Doesn't change the results of run()
+	 * @param level level of HTMids in ranges, 0 to HTMid.maxLevel
+	 * @param consumer receives the ranges
+	 */
+	public void runDepthFirst(int level, RangeConsumer consumer) {
+		if (level < 0 || level > HTMid.maxLevel) {
+			throw new IllegalArgumentException("Level out of range: " + level);
+		}
+		if (!hasShape()) {
+			return;
+		}
+		RangeMerger merger = new RangeMerger(level, consumer);
+		HTM htm = HTM.getInstance();
+		for (int i = 0; i < 8; i++) {
+			coverDepthFirst(htm.getTopTrixel(i), 0, Math.max(maxLevel, 0), merger);
+		}
+		merger.flush();
+	}
+	
+	private void coverDepthFirst(Trixel t, int tLevel, int lastLevel, RangeMerger merger) {
+		switch (getMarkup(t)) {
+		case Full:
+			merger.add(t.getHTMid().getId(), tLevel);
+			break;
+		case Partial:
+			if (tLevel >= lastLevel) {
+				merger.add(t.getHTMid().getId(), tLevel);
+			} else {
+				for (Trixel child : t.expand()) {
+					coverDepthFirst(child, tLevel + 1, lastLevel, merger);
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+	
+	/**
+	 * Extends HTMids arriving in ascending order to ranges of one level,
+	 * merges overlapping or adjacent ones, and passes them on
+	 */
+	private static class RangeMerger {
+		
+		private final int level;
+		
+		private final RangeConsumer consumer;
+		
+		private long lo, hi;
+		
+		private boolean pending;
+		
+		RangeMerger(int level, RangeConsumer consumer) {
+			this.level = level;
+			this.consumer = consumer;
+			pending = false;
+		}
+		
+		void add(long hid, int hidLevel) {
+			long nextLo, nextHi;
+			if (hidLevel < level) {
+				int shiftBits = 2 * (level - hidLevel);
+				nextLo = hid << shiftBits;
+				nextHi = nextLo + ((1L << shiftBits) - 1);
+			} else {
+				nextLo = hid >> 2 * (hidLevel - level);
+				nextHi = nextLo;
+			}
+			if (pending && hi >= nextLo - 1) {
+				hi = Math.max(hi, nextHi);
+				return;
+			}
+			flush();
+			lo = nextLo;
+			hi = nextHi;
+			pending = true;
+		}
+		
+		void flush() {
+			if (pending) {
+				consumer.accept(lo, hi);
+				pending = false;
+			}
+		}
+		
+	}
+	
 	public List<Pair<HTMid, HTMid> > getHTMidPairs(int level) {
 		if (!alreadyRun) {
 			return null;
@@ -142,6 +529,41 @@ public class Cover {
 		return htmRanges.getPairList();
 	}
 	
+	/**
+	 * Get compacted ranges of all covering Trixels
+	 * @param level level of HTMids in ranges
+	 * @return HTMRanges, null if failed
+	 */
+	public HTMRanges getHTMRanges(int level) {
+		if (!alreadyRun) {
+			return null;
+		}
+		return new HTMRanges(getTrixels(), level);
+	}
+	
+	/**
+	 * Get all covering Trixels in the smaller of HTMRanges and HTMBitmap
+	 * @param level level of HTMids in the set
+	 * @return HTMRangeSet, null if failed
+	 */
+	public HTMRangeSet getHTMRangeSet(int level) {
+		HTMRanges ranges = getHTMRanges(level);
+		return ranges == null ? null : HTMBitmap.choose(ranges);
+	}
+	
+	/**
+	 * Get all covering Trixels as a normalized set of mixed-level HTMids
+	 * Each Trixel stays at its own level, so the size follows the number
+	 * of Trixels instead of the span of their ranges.
+	 * @return HTMidSet, null if failed
+	 */
+	public HTMidSet getHTMidSet() {
+		if (!alreadyRun) {
+			return null;
+		}
+		return new HTMidSet(getTrixels());
+	}
+	
 	public List<Pair<HTMid, HTMid> > getHTMidPairs(Markup markup, int level) {
 		if (!alreadyRun) {
 			return null;
@@ -201,10 +623,21 @@ public class Cover {
 		options.addOption("d", true, "maximum HTMid depth");
 		options.addOption("latlon", false, "input points as latitude, longitude");
 		options.addOption("file", true, "output file name");
+		options.addOption("parallel", false, "cover with fork/join tasks");
+		options.addOption("compact", false, "cover keeping the frontier in primitive arrays");
+		options.addOption("dfs", false, "cover depth-first, streaming ranges");
+		options.addOption("ranges", true, "maximum number of ranges");
+		options.addOption("trixels", true, "maximum number of Trixels");
+		options.addOption("binary", false, "write ranges to -file in compact binary form");
+		options.addOption("raw", false, "write ranges to -file as mappable raw longs");
+		options.addOption("level", true, "level of HTMids in ranges, default 20");
+		options.addOption("cells", false, "write mixed-level HTMids instead of ranges");
+		
+		options.addOption("circle", true,
+				"center and radius in degrees of circular query range");
 		
 		Option option = new Option("points", true,
 				"vertices of query range in clockwise order");
-		option.setRequired(true);
 		option.setArgs(Option.UNLIMITED_VALUES);
 		options.addOption(option);
 		
@@ -212,9 +645,19 @@ public class Cover {
 		
 		try {
 			CommandLine cmd = parser.parse(options, args);
-			String[] vertices = cmd.getOptionValues("points");
-			Convex convex = Convex.parseVertices(vertices, cmd.hasOption("latlon"));
-			if (convex == null) {
+			Convex convex = null;
+			Halfspace circle = null;
+			if (cmd.hasOption("points")) {
+				String[] vertices = cmd.getOptionValues("points");
+				convex = Convex.parseVertices(vertices, cmd.hasOption("latlon"));
+			} else if (cmd.hasOption("circle")) {
+				circle = Halfspace.parseCircle(cmd.getOptionValue("circle"),
+						cmd.hasOption("latlon"));
+			} else {
+				System.out.println("Must specify -points or -circle");
+				return;
+			}
+			if (convex == null && circle == null) {
 				System.out.println("Illegal arguments!");
 				return;
 			}
@@ -225,49 +668,137 @@ public class Cover {
 			}
 			
 			int depth = Integer.valueOf(cmd.getOptionValue("d"));
+			int level = Integer.valueOf(cmd.getOptionValue("level", "20"));
+			if (depth < 0 || depth > HTMid.maxLevel || level < 0 || level > HTMid.maxLevel) {
+				System.out.println("-d and -level must be 0 to " + HTMid.maxLevel);
+				return;
+			}
+			final boolean longForm = cmd.hasOption("l");
 			
-			Cover cover = new Cover(convex, depth);
-			cover.run();
-			List<Pair<HTMid, HTMid> > pairs = cover.getHTMidPairs(20);
+			if (circle != null && (cmd.hasOption("ranges") || cmd.hasOption("trixels"))) {
+				System.out.println("-ranges and -trixels only apply to -points");
+				return;
+			}
 			
-			BufferedWriter bw = null;
+			if (cmd.hasOption("cells") && (cmd.hasOption("binary") || cmd.hasOption("raw")
+					|| cmd.hasOption("dfs") || cmd.hasOption("ranges") || cmd.hasOption("trixels"))) {
+				System.out.println("-cells can't be used with -binary, -raw, -dfs, -ranges or -trixels");
+				return;
+			}
 			
-			if (cmd.hasOption("file")) {
-				String filename = cmd.getOptionValue("file");
-				File file = new File(filename);
-				if (!file.exists()) {
-					file.createNewFile();
-				}
-				bw = new BufferedWriter(new FileWriter(file));
+			int runs = (cmd.hasOption("parallel") ? 1 : 0) + (cmd.hasOption("compact") ? 1 : 0)
+					+ (cmd.hasOption("dfs") ? 1 : 0);
+			if (runs > 1) {
+				System.out.println("-parallel, -compact and -dfs can't be used together");
+				return;
+			}
+			if (runs > 0 && (cmd.hasOption("ranges") || cmd.hasOption("trixels"))) {
+				System.out.println("-ranges and -trixels can't be used with -parallel, -compact or -dfs");
+				return;
 			}
 			
-			if (cmd.hasOption("l")) {
-				for (Pair<HTMid, HTMid> pair : pairs) {
-					if (cmd.hasOption("file")) {
-						bw.write(pair.a.getId() + ", " +
-										pair.b.getId());
-						bw.newLine();
-					} else {
-						System.out.println(pair.a.getId() + ", " +
-										pair.b.getId());
+			final BufferedWriter bw;
+			final Closeable fileWriter;
+			final RangeConsumer output;
+			if (cmd.hasOption("binary") && cmd.hasOption("raw")) {
+				System.out.println("-binary and -raw can't be used together");
+				return;
+			}
+			if (cmd.hasOption("binary") || cmd.hasOption("raw")) {
+				if (!cmd.hasOption("file")) {
+					System.out.println("-binary and -raw require -file");
+					return;
+				}
+				bw = null;
+				if (cmd.hasOption("binary")) {
+					HTMRanges.BinaryWriter binaryWriter =
+							new HTMRanges.BinaryWriter(cmd.getOptionValue("file"), level);
+					fileWriter = binaryWriter;
+					output = binaryWriter;
+				} else {
+					HTMRanges.RawWriter rawWriter =
+							new HTMRanges.RawWriter(cmd.getOptionValue("file"), level);
+					fileWriter = rawWriter;
+					output = rawWriter;
+				}
+			} else {
+				if (cmd.hasOption("file")) {
+					String filename = cmd.getOptionValue("file");
+					File file = new File(filename);
+					if (!file.exists()) {
+						file.createNewFile();
+					}
+					bw = new BufferedWriter(new FileWriter(file));
+				} else {
+					bw = new BufferedWriter(new OutputStreamWriter(System.out));
+				}
+				fileWriter = null;
+				output = new RangeConsumer() {
+					@Override
+					public void accept(long lo, long hi) {
+						try {
+							writeRange(bw, lo, hi, longForm);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
 					}
+				};
+			}
+			
+			if (cmd.hasOption("ranges") || cmd.hasOption("trixels")) {
+				int maxRanges = Integer.valueOf(cmd.getOptionValue("ranges", "0"));
+				int maxTrixels = Integer.valueOf(cmd.getOptionValue("trixels", "0"));
+				AdaptiveCover adaptive = new AdaptiveCover(convex, depth, level,
+						maxRanges, maxTrixels);
+				adaptive.run();
+				HTMRanges ranges = adaptive.getHTMRanges();
+				for (int i = 0; i < ranges.size(); i++) {
+					output.accept(ranges.getLowerBound(i), ranges.getUpperBound(i));
 				}
+				// Keep stdout for the ranges when they are written there
+				String excess = String.format("approximate excess area: %.3e sr",
+						adaptive.getExcessArea());
+				if (cmd.hasOption("file")) {
+					System.out.println(excess);
+				} else {
+					System.err.println(excess);
+				}
+			} else if (cmd.hasOption("dfs")) {
+				Cover cover = circle != null ? new Cover(circle, depth) : new Cover(convex, depth);
+				cover.runDepthFirst(level, output);
 			} else {
-				for (Pair<HTMid, HTMid> pair : pairs) {
-					if (cmd.hasOption("file")) {
-						bw.write(pair.a.toString() + ", " +
-										pair.b.toString());
+				Cover cover = circle != null ? new Cover(circle, depth) : new Cover(convex, depth);
+				if (cmd.hasOption("parallel")) {
+					cover.runParallel();
+				} else if (cmd.hasOption("compact")) {
+					cover.runCompact();
+				} else {
+					cover.run();
+				}
+				if (cmd.hasOption("cells")) {
+					HTMidSet cells = cover.getHTMidSet();
+					for (int i = 0; i < cells.size(); i++) {
+						long hid = cells.getId(i);
+						bw.write(longForm ? String.valueOf(hid) : HTMid.idToName(hid));
 						bw.newLine();
-					} else {
-						System.out.println(pair.a.toString() + ", " +
-										pair.b.toString());
+					}
+				} else {
+					HTMRanges ranges = cover.getHTMRanges(level);
+					for (int i = 0; i < ranges.size(); i++) {
+						output.accept(ranges.getLowerBound(i), ranges.getUpperBound(i));
 					}
 				}
 			}
 			
-			if (cmd.hasOption("file")) {
+			if (fileWriter != null) {
+				fileWriter.close();
+			} else {
 				bw.flush();
-				bw.close();
+				if (cmd.hasOption("file")) {
+					bw.close();
+				}
+			}
+			if (cmd.hasOption("file")) {
 				System.out.println("ranges saved to " + cmd.getOptionValue("file"));
 			}
 			
@@ -277,7 +808,20 @@ public class Cover {
 		} catch (IOException e) {
 			System.out.println("File output error!");
 			e.printStackTrace();
+		} catch (UncheckedIOException e) {
+			System.out.println("File output error!");
+			e.printStackTrace();
+		}
+	}
+	
+	private static void writeRange(BufferedWriter bw, long lo, long hi, boolean longForm)
+			throws IOException {
+		if (longForm) {
+			bw.write(lo + ", " + hi);
+		} else {
+			bw.write(HTMid.idToName(lo) + ", " + HTMid.idToName(hi));
 		}
+		bw.newLine();
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.util.*;
+
+import cn.edu.tsinghua.cs.htm.shapes.Convex;
+import cn.edu.tsinghua.cs.htm.utils.HTMRangeSet;
+import cn.edu.tsinghua.cs.htm.utils.HTMRanges;
+
+/**
+ * Bounded, thread-safe cache of Cover results
+ * Keyed by the canonical form of the Convex, the depth and the level of ranges,
+ * so the same region given with rotated vertices hits the same entry.
+ * Covers are kept in the smaller of HTMRanges and HTMBitmap, see HTMBitmap.choose().
+ * Least recently used entries are evicted when there are too many entries
+ * or too many bytes in total.
+ */
+public class CoverCache {
+
+	private final int maxEntries;
+
+	private final long maxBytes;
+
+	private final LinkedHashMap<Key, HTMRangeSet> map;
+
+	private long totalBytes;
+
+	private long hits, misses;
+
+	/**
+	 * @param maxEntries maximum number of cached covers
+	 * @param maxBytes maximum size of all cached covers, see HTMRangeSet.getSizeInBytes()
+	 */
+	public CoverCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		map = new LinkedHashMap<Key, HTMRangeSet>(16, 0.75f, true);
+		totalBytes = 0;
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * Get the cover of a Convex, computing it if not cached
+	 * Same set as running Cover(convex, depth) and getHTMRangeSet(level)
+	 * @param convex
+	 * @param depth maximum HTMid depth
+	 * @param level level of HTMids in the set
+	 * @return HTMRanges or HTMBitmap, null if failed
+	 */
+	public HTMRangeSet getHTMRangeSet(Convex convex, int depth, int level) {
+		if (convex == null) {
+			return null;
+		}
+		Key key = new Key(convex.getCanonicalForm(), depth, level);
+		synchronized (this) {
+			HTMRangeSet cached = map.get(key);
+			if (cached != null) {
+				hits++;
+				return cached;
+			}
+			misses++;
+		}
+
+		// Computed outside the lock, a concurrent miss may compute it twice
+		Cover cover = new Cover(convex, depth);
+		cover.run();
+		HTMRangeSet set = cover.getHTMRangeSet(level);
+		if (set == null) {
+			return null;
+		}
+
+		synchronized (this) {
+			HTMRangeSet previous = map.put(key, set);
+			if (previous != null) {
+				totalBytes -= previous.getSizeInBytes();
+			}
+			totalBytes += set.getSizeInBytes();
+			evict();
+		}
+		return set;
+	}
+
+	/**
+	 * Same as getHTMRangeSet(), as ranges
+	 * @param convex
+	 * @param depth maximum HTMid depth
+	 * @param level level of HTMids in ranges
+	 * @return HTMRanges, null if failed
+	 */
+	public HTMRanges getHTMRanges(Convex convex, int depth, int level) {
+		HTMRangeSet set = getHTMRangeSet(convex, depth, level);
+		return set == null ? null : set.toRanges();
+	}
+
+	private void evict() {
+		Iterator<HTMRangeSet> iter = map.values().iterator();
+		while (iter.hasNext() && (map.size() > maxEntries || totalBytes > maxBytes)) {
+			totalBytes -= iter.next().getSizeInBytes();
+			iter.remove();
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Number of cached covers
+	 * @return size
+	 */
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * Size of all cached covers
+	 * @return total bytes
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public synchronized void clear() {
+		map.clear();
+		totalBytes = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CoverCache: {" + map.size() + " covers, " + totalBytes
+				+ " bytes, " + hits + " hits, " + misses + " misses}";
+	}
+
+	private static class Key {
+
+		private final long[] form;
+
+		private final int depth, level;
+
+		private final int hash;
+
+		Key(long[] form, int depth, int level) {
+			this.form = form;
+			this.depth = depth;
+			this.level = level;
+			this.hash = (Arrays.hashCode(form) * 31 + depth) * 31 + level;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return depth == that.depth && level == that.level
+					&& Arrays.equals(form, that.form);
+		}
+
+	}
+
+}
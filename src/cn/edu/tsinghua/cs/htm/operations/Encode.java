@@ -0,0 +1,382 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cn.edu.tsinghua.cs.htm.HTM;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+import cn.edu.tsinghua.cs.htm.utils.Latlon2Cartesian;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Append an HTMid column to a catalog of points
+ * Input is a text file with one point per line, either "x,y,z" or
+ * "latitude,longitude" in the first columns. Other columns are kept.
+ * The input is memory-mapped and processed window by window,
+ * each window split into chunks which are encoded in parallel,
+ * so memory is bounded by the window size.
+ * Output is either the input lines with an extra column,
+ * or fixed-width little-endian binary records of the coordinates and HTMid.
+ * Points without an HTMid, i.e. the origin or NaN coordinates,
+ * get an empty column, or 0 in binary records.
+ */
+public class Encode {
+
+	/**
+	 * Default size of the mapped input window
+	 */
+	private static final int defaultWindow = 64 << 20;
+
+	private final int depth;
+
+	private final boolean latlon;
+
+	private final boolean binary;
+
+	private final boolean longForm;
+
+	private final int numOfCoords;
+
+	public Encode(int depth, boolean latlon, boolean binary, boolean longForm) {
+		this.depth = depth;
+		this.latlon = latlon;
+		this.binary = binary;
+		this.longForm = longForm;
+		this.numOfCoords = latlon ? 2 : 3;
+	}
+
+	/**
+	 * Size of one binary output record in bytes
+	 * @return coordinates as doubles followed by HTMid as long
+	 */
+	public int getRecordSize() {
+		return numOfCoords * 8 + 8;
+	}
+
+	/**
+	 * Encode a whole file
+	 * @param inName input file name
+	 * @param outName output file name
+	 * @param header if the first line is a header
+	 * @param threads number of threads to encode with
+	 * @param window size of mapped input window in bytes
+	 * @return number of points encoded
+	 * @throws IOException
+	 */
+	public long run(String inName, String outName, boolean header,
+			int threads, int window) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		RandomAccessFile in = new RandomAccessFile(inName, "r");
+		RandomAccessFile out = new RandomAccessFile(outName, "rw");
+		long count = 0;
+		try {
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			outChannel.truncate(0);
+
+			long size = inChannel.size();
+			long position = 0;
+			while (position < size) {
+				long length = Math.min(window, size - position);
+				MappedByteBuffer mapped = inChannel.map(
+						FileChannel.MapMode.READ_ONLY, position, length);
+
+				// Only process complete lines, the rest goes to the next window
+				int end = (int) length;
+				if (position + length < size) {
+					end = lastLineEnd(mapped, end);
+					if (end == 0) {
+						throw new IOException("Line longer than "
+								+ window + " bytes at " + position);
+					}
+				}
+
+				int start = 0;
+				if (header && position == 0) {
+					start = lineEnd(mapped, 0, end);
+					if (!binary) {
+						byte[] headerLine = new byte[trimEnd(mapped, 0, start)];
+						mapped.get(headerLine);
+						outChannel.write(ByteBuffer.wrap(headerLine));
+						outChannel.write(ByteBuffer.wrap(",htmid\n".getBytes(StandardCharsets.ISO_8859_1)));
+					}
+				}
+
+				List<Future<Chunk> > futures = new ArrayList<Future<Chunk> >();
+				int chunkSize = Math.max((end - start) / threads, 1);
+				while (start < end) {
+					int chunkEnd = lineEnd(mapped, Math.min(start + chunkSize, end) - 1, end);
+					futures.add(executor.submit(new ChunkTask(mapped, start, chunkEnd)));
+					start = chunkEnd;
+				}
+
+				for (Future<Chunk> future : futures) {
+					Chunk chunk = future.get();
+					outChannel.write(chunk.output);
+					count += chunk.count;
+				}
+
+				position += end;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdown();
+			in.close();
+			out.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Output of a chunk of lines
+	 */
+	private static class Chunk {
+
+		ByteBuffer output;
+
+		int count;
+
+	}
+
+	private class ChunkTask implements Callable<Chunk> {
+
+		private final ByteBuffer input;
+
+		private final int from, to;
+
+		ChunkTask(MappedByteBuffer mapped, int from, int to) {
+			this.input = mapped.duplicate();
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Chunk call() {
+			byte[] bytes = new byte[to - from];
+			input.position(from);
+			input.get(bytes);
+
+			Chunk chunk = new Chunk();
+			HTM htm = HTM.getInstance();
+			double[] coords = new double[3];
+			double[] xyz = new double[3];
+			char[] name = new char[HTMid.maxNameLength];
+
+			ByteBuffer records = null;
+			ByteArrayOutputStream lines = null;
+			if (binary) {
+				records = ByteBuffer.allocate(countLines(bytes) * getRecordSize());
+				records.order(ByteOrder.LITTLE_ENDIAN);
+			} else {
+				lines = new ByteArrayOutputStream(bytes.length + bytes.length / 2);
+			}
+
+			int lineStart = 0;
+			while (lineStart < bytes.length) {
+				int lineEnd = lineStart;
+				while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+					lineEnd++;
+				}
+				int next = lineEnd + 1;
+				if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+					lineEnd--;
+				}
+				if (lineEnd > lineStart) {
+					parseCoords(bytes, lineStart, lineEnd, coords);
+					if (latlon) {
+						Latlon2Cartesian.parse(coords[0], coords[1], xyz);
+					} else {
+						xyz[0] = coords[0];
+						xyz[1] = coords[1];
+						xyz[2] = coords[2];
+					}
+					long hid = htm.encode(xyz[0], xyz[1], xyz[2], depth);
+
+					if (binary) {
+						for (int i = 0; i < numOfCoords; i++) {
+							records.putDouble(coords[i]);
+						}
+						records.putLong(hid);
+					} else {
+						lines.write(bytes, lineStart, lineEnd - lineStart);
+						lines.write(',');
+						if (hid == 0) {
+							// Not found, left empty
+						} else if (longForm) {
+							String hidStr = Long.toString(hid);
+							for (int i = 0; i < hidStr.length(); i++) {
+								lines.write(hidStr.charAt(i));
+							}
+						} else {
+							int length = HTMid.formatName(hid, name, 0);
+							for (int i = 0; i < length; i++) {
+								lines.write(name[i]);
+							}
+						}
+						lines.write('\n');
+					}
+					chunk.count++;
+				}
+				lineStart = next;
+			}
+
+			if (binary) {
+				records.flip();
+				chunk.output = records;
+			} else {
+				chunk.output = ByteBuffer.wrap(lines.toByteArray());
+			}
+			return chunk;
+		}
+
+		/**
+		 * Parse the leading coordinate columns of a line
+		 */
+		private void parseCoords(byte[] bytes, int from, int to, double[] coords) {
+			int fieldStart = from;
+			for (int i = 0; i < numOfCoords; i++) {
+				int fieldEnd = fieldStart;
+				while (fieldEnd < to && bytes[fieldEnd] != ',') {
+					fieldEnd++;
+				}
+				if (fieldEnd == fieldStart || (fieldEnd == to && i < numOfCoords - 1)) {
+					throw new NumberFormatException("Illegal line: "
+							+ new String(bytes, from, to - from, StandardCharsets.ISO_8859_1));
+				}
+				String field = new String(bytes, fieldStart, fieldEnd - fieldStart,
+						StandardCharsets.ISO_8859_1);
+				coords[i] = Double.parseDouble(field.trim());
+				fieldStart = fieldEnd + 1;
+			}
+		}
+
+	}
+
+	private static int countLines(byte[] bytes) {
+		int count = 0;
+		for (byte b : bytes) {
+			if (b == '\n') {
+				count++;
+			}
+		}
+		if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Position just after the end of the line containing pos
+	 * or limit if the line is not terminated
+	 */
+	private static int lineEnd(ByteBuffer buffer, int pos, int limit) {
+		while (pos < limit && buffer.get(pos) != '\n') {
+			pos++;
+		}
+		return Math.min(pos + 1, limit);
+	}
+
+	/**
+	 * Position just after the last line feed before limit, 0 if none
+	 */
+	private static int lastLineEnd(ByteBuffer buffer, int limit) {
+		int pos = limit - 1;
+		while (pos >= 0 && buffer.get(pos) != '\n') {
+			pos--;
+		}
+		return pos + 1;
+	}
+
+	/**
+	 * Length of the line [from, to) without line terminators
+	 */
+	private static int trimEnd(ByteBuffer buffer, int from, int to) {
+		while (to > from && (buffer.get(to - 1) == '\n' || buffer.get(to - 1) == '\r')) {
+			to--;
+		}
+		return to - from;
+	}
+
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption("l", false, "HTMids in long int form");
+		options.addOption("d", true, "HTMid depth");
+		options.addOption("latlon", false, "input points as latitude, longitude");
+		options.addOption("binary", false, "output fixed-width little-endian records");
+		options.addOption("header", false, "first line of input is a header");
+		options.addOption("threads", true, "number of encoding threads");
+
+		Option option = new Option("in", true, "input file name");
+		option.setRequired(true);
+		options.addOption(option);
+		option = new Option("file", true, "output file name");
+		option.setRequired(true);
+		options.addOption(option);
+
+		CommandLineParser parser = new DefaultParser();
+
+		try {
+			CommandLine cmd = parser.parse(options, args);
+
+			if (!cmd.hasOption("d")) {
+				System.out.println("Must specify depth: -d [num]");
+				return;
+			}
+
+			int depth = Integer.valueOf(cmd.getOptionValue("d"));
+			if (depth < 0 || depth > HTMid.maxLevel) {
+				System.out.println("Depth must be 0 to " + HTMid.maxLevel + ": -d [num]");
+				return;
+			}
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("threads")) {
+				threads = Integer.valueOf(cmd.getOptionValue("threads"));
+				if (threads <= 0) {
+					System.out.println("Number of threads must be positive: -threads [num]");
+					return;
+				}
+			}
+
+			Encode encode = new Encode(depth, cmd.hasOption("latlon"),
+					cmd.hasOption("binary"), cmd.hasOption("l"));
+			long count = encode.run(cmd.getOptionValue("in"), cmd.getOptionValue("file"),
+					cmd.hasOption("header"), threads, defaultWindow);
+			System.out.println(count + " points encoded to " + cmd.getOptionValue("file"));
+
+		} catch (ParseException e) {
+			System.out.println("Argument error!");
+			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			System.out.println(e.getMessage());
+		} catch (IOException e) {
+			System.out.println("File error!");
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,362 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cn.edu.tsinghua.cs.htm.HTM;
+import cn.edu.tsinghua.cs.htm.Mesh;
+import cn.edu.tsinghua.cs.htm.shapes.Convex;
+import cn.edu.tsinghua.cs.htm.shapes.Halfspace;
+import cn.edu.tsinghua.cs.htm.utils.HTMRangeSet;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+import cn.edu.tsinghua.cs.htm.utils.Latlon2Cartesian;
+import cn.edu.tsinghua.cs.htm.utils.RangeConsumer;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Long-running server answering cover and encode requests
+ * Keeps the HTM singleton, the Mesh and a CoverCache warm across requests.
+ * Listens on the loopback interface, one thread per connection,
+ * one request per line, one response line per request:
+ *   COVER depth level latlon|xyz v1 v2 v3 ...  ->  OK lo,hi lo,hi ...
+ *   CIRCLE depth level latlon|xyz center,radius  ->  OK lo,hi lo,hi ...
+ *   ENCODE depth latlon|xyz p1 p2 ...  ->  OK hid hid ...
+ *   STATS  ->  OK covers bytes hits misses
+ *   QUIT  ->  closes the connection
+ * Errors are answered with ERR and a message. Depths of covers are limited,
+ * a deep cover of a large region could take all memory of the server.
+ * Connections beyond the number of threads are answered ERR busy and closed,
+ * as are idle connections and overlong lines.
+ */
+public class Server {
+
+	private static final int defaultPort = 7077;
+
+	private static final int defaultMaxDepth = 20;
+
+	/**
+	 * Milliseconds a connection may wait between requests
+	 */
+	private static final int idleTimeout = 60000;
+
+	private static final int maxLineLength = 1 << 16;
+
+	private final CoverCache cache;
+
+	private final int maxDepth;
+
+	public Server(CoverCache cache) {
+		this(cache, defaultMaxDepth);
+	}
+
+	/**
+	 * @param cache
+	 * @param maxDepth maximum depth of COVER and CIRCLE, at most HTMid.maxLevel
+	 */
+	public Server(CoverCache cache, int maxDepth) {
+		if (maxDepth < 0 || maxDepth > HTMid.maxLevel) {
+			throw new IllegalArgumentException("Depth out of range: " + maxDepth);
+		}
+		this.cache = cache;
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Accept connections until the process is stopped
+	 * @param port
+	 * @param threads maximum number of concurrent connections
+	 * @throws IOException
+	 */
+	public void serve(int port, int threads) throws IOException {
+		// No queue, a connection either gets a thread or is turned away
+		ExecutorService executor = new ThreadPoolExecutor(threads, threads,
+				0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+		ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							handle(socket);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					refuse(socket);
+				}
+			}
+		} finally {
+			serverSocket.close();
+			executor.shutdown();
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			socket.setSoTimeout(idleTimeout);
+			BufferedReader br = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), StandardCharsets.US_ASCII));
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream(), StandardCharsets.US_ASCII));
+			String line;
+			while ((line = readLine(br)) != null) {
+				if (line.length() > maxLineLength) {
+					bw.write("ERR Request longer than " + maxLineLength + " chars");
+					bw.newLine();
+					bw.flush();
+					break;
+				}
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				if (line.equalsIgnoreCase("QUIT")) {
+					break;
+				}
+				bw.write(answer(line));
+				bw.newLine();
+				bw.flush();
+			}
+		} catch (IOException e) {
+			// Connection lost or idle, nothing to answer
+		} finally {
+			close(socket);
+		}
+	}
+
+	/**
+	 * Read a line of at most maxLineLength chars
+	 * @param br
+	 * @return line without the terminator, longer than maxLineLength
+	 * if cut short, null at the end of input
+	 * @throws IOException
+	 */
+	private static String readLine(BufferedReader br) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = br.read()) >= 0) {
+			if (c == '\n') {
+				return sb.toString();
+			}
+			if (c != '\r') {
+				sb.append((char) c);
+				if (sb.length() > maxLineLength) {
+					return sb.toString();
+				}
+			}
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	private static void refuse(Socket socket) {
+		try {
+			BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream(), StandardCharsets.US_ASCII));
+			bw.write("ERR busy");
+			bw.newLine();
+			bw.flush();
+		} catch (IOException e) {
+			// Client gone already
+		} finally {
+			close(socket);
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Answer a single request line
+	 * @param line request
+	 * @return response line
+	 */
+	public String answer(String line) {
+		String[] args = line.split("\\s+");
+		try {
+			String command = args[0].toUpperCase();
+			if (command.equals("COVER")) {
+				return cover(args);
+			} else if (command.equals("CIRCLE")) {
+				return circle(args);
+			} else if (command.equals("ENCODE")) {
+				return encode(args);
+			} else if (command.equals("STATS")) {
+				return "OK " + cache.size() + " " + cache.getTotalBytes() + " "
+						+ cache.getHits() + " " + cache.getMisses();
+			}
+			return "ERR Unknown request: " + args[0];
+		} catch (NumberFormatException e) {
+			return "ERR Illegal number: " + e.getMessage();
+		} catch (RuntimeException e) {
+			return "ERR " + e;
+		}
+	}
+
+	private String cover(String[] args) {
+		if (args.length < 7) {
+			return "ERR Usage: COVER depth level latlon|xyz v1 v2 v3 ...";
+		}
+		int depth = Integer.parseInt(args[1]);
+		int level = Integer.parseInt(args[2]);
+		String error = checkDepthAndLevel(depth, level);
+		if (error != null) {
+			return error;
+		}
+		String[] vertices = new String[args.length - 4];
+		System.arraycopy(args, 4, vertices, 0, vertices.length);
+		Convex convex = Convex.parseVertices(vertices, isLatlon(args[3]));
+		if (convex == null) {
+			return "ERR Illegal vertices";
+		}
+		return rangesToString(cache.getHTMRangeSet(convex, depth, level));
+	}
+
+	private String circle(String[] args) {
+		if (args.length != 5) {
+			return "ERR Usage: CIRCLE depth level latlon|xyz center,radius";
+		}
+		int depth = Integer.parseInt(args[1]);
+		int level = Integer.parseInt(args[2]);
+		String error = checkDepthAndLevel(depth, level);
+		if (error != null) {
+			return error;
+		}
+		Halfspace circle = Halfspace.parseCircle(args[4], isLatlon(args[3]));
+		if (circle == null) {
+			return "ERR Illegal circle";
+		}
+		Cover cover = new Cover(circle, depth);
+		cover.run();
+		return rangesToString(cover.getHTMRangeSet(level));
+	}
+
+	private String encode(String[] args) {
+		if (args.length < 4) {
+			return "ERR Usage: ENCODE depth latlon|xyz p1 p2 ...";
+		}
+		int depth = Integer.parseInt(args[1]);
+		if (depth < 0 || depth > HTMid.maxLevel) {
+			return "ERR Depth must be 0 to " + HTMid.maxLevel;
+		}
+		boolean latlon = isLatlon(args[2]);
+		HTM htm = HTM.getInstance();
+		double[] xyz = new double[3];
+		StringBuilder sb = new StringBuilder("OK");
+		for (int i = 3; i < args.length; i++) {
+			String[] values = args[i].split(",");
+			if (values.length != (latlon ? 2 : 3)) {
+				return "ERR Illegal point: " + args[i];
+			}
+			if (latlon) {
+				Latlon2Cartesian.parse(Double.parseDouble(values[0]),
+						Double.parseDouble(values[1]), xyz);
+			} else {
+				for (int j = 0; j < 3; j++) {
+					xyz[j] = Double.parseDouble(values[j]);
+				}
+			}
+			sb.append(' ').append(htm.encode(xyz[0], xyz[1], xyz[2], depth));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return ERR response, null if both are in range
+	 */
+	private String checkDepthAndLevel(int depth, int level) {
+		if (depth < 0 || depth > maxDepth) {
+			return "ERR Depth must be 0 to " + maxDepth;
+		}
+		if (level < 0 || level > HTMid.maxLevel) {
+			return "ERR Level must be 0 to " + HTMid.maxLevel;
+		}
+		return null;
+	}
+
+	private static boolean isLatlon(String form) {
+		if (form.equalsIgnoreCase("latlon")) {
+			return true;
+		} else if (form.equalsIgnoreCase("xyz")) {
+			return false;
+		}
+		throw new IllegalArgumentException("Expecting latlon or xyz: " + form);
+	}
+
+	private static String rangesToString(HTMRangeSet set) {
+		if (set == null) {
+			return "ERR Cover failed";
+		}
+		final StringBuilder sb = new StringBuilder("OK");
+		set.forEachRange(new RangeConsumer() {
+			@Override
+			public void accept(long lo, long hi) {
+				sb.append(' ').append(lo).append(',').append(hi);
+			}
+		});
+		return sb.toString();
+	}
+
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption("port", true, "port on loopback interface, default " + defaultPort);
+		options.addOption("threads", true, "maximum concurrent connections");
+		options.addOption("cache", true, "maximum number of cached covers");
+		options.addOption("maxdepth", true, "maximum depth of covers, default " + defaultMaxDepth);
+
+		CommandLineParser parser = new DefaultParser();
+
+		try {
+			CommandLine cmd = parser.parse(options, args);
+			int port = Integer.valueOf(cmd.getOptionValue("port", String.valueOf(defaultPort)));
+			int threads = Integer.valueOf(cmd.getOptionValue("threads",
+					String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+			int entries = Integer.valueOf(cmd.getOptionValue("cache", "1024"));
+			int maxDepth = Integer.valueOf(cmd.getOptionValue("maxdepth",
+					String.valueOf(defaultMaxDepth)));
+			if (threads <= 0 || maxDepth < 0 || maxDepth > HTMid.maxLevel) {
+				System.out.println("-threads must be positive and -maxdepth 0 to " + HTMid.maxLevel);
+				return;
+			}
+
+			// Warm up before taking requests
+			Mesh mesh = HTM.getInstance().getMesh();
+			mesh.getCorner(8L << (2 * mesh.getMaxLevel()), mesh.getMaxLevel(), 0);
+
+			Server server = new Server(new CoverCache(entries, 1L << 28), maxDepth);
+			System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress()
+					+ ":" + port);
+			server.serve(port, threads);
+
+		} catch (ParseException e) {
+			System.out.println("Argument error!");
+			e.printStackTrace();
+		} catch (IOException e) {
+			System.out.println("Server error!");
+			e.printStackTrace();
+		}
+	}
+
+}
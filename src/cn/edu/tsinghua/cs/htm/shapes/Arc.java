@@ -14,10 +14,33 @@ public class Arc {
 	
 	protected double cosAngular;
 	
+	/**
+	 * Lengths of v1 and v2
+	 */
+	protected double length1, length2;
+	
+	/**
+	 * Square of the tangent of half the angle between v1 and v2
+	 * Used to parametrize the Arc, see ArcInterHS
+	 */
+	protected double uSquare;
+	
 	public Arc(Cartesian v1, Cartesian v2) {
+		set(v1, v2);
+	}
+	
+	/**
+	 * Make this Arc link other points, or the same points after they changed
+	 * @param v1
+	 * @param v2
+	 */
+	void set(Cartesian v1, Cartesian v2) {
 		this.v1 = v1;
 		this.v2 = v2;
-		cosAngular = v1.dot(v2) / v1.length() / v2.length();
+		length1 = v1.length();
+		length2 = v2.length();
+		cosAngular = v1.dot(v2) / length1 / length2;
+		uSquare = (1 - cosAngular) / (1 + cosAngular);
 	}
 	
 	/**
@@ -29,5 +52,15 @@ public class Arc {
 	public ArcInterHS intersectHalfspace(Halfspace halfspace) {
 		return new ArcInterHS(this, halfspace);
 	}
+	
+	/**
+	 * Judge if the Arc crosses the constraint of a Halfspace
+	 * Same as intersectHalfspace(halfspace).hasIntersection(), allocating nothing
+	 * @param halfspace
+	 * @return true if intersects
+	 */
+	public boolean crosses(Halfspace halfspace) {
+		return !Double.isNaN(ArcInterHS.rootOnEdge(this, halfspace));
+	}
 
 }
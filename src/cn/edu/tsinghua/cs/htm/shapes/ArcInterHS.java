@@ -2,99 +2,120 @@ package cn.edu.tsinghua.cs.htm.shapes;
 
 import cn.edu.tsinghua.cs.htm.utils.Constants;
 import cn.edu.tsinghua.cs.htm.utils.Pair;
-import cn.edu.tsinghua.cs.htm.utils.Quadratic;
 
 public class ArcInterHS {
 	
-	private Cartesian arcVertex1, arcVertex2;
+	private Arc arc;
 	
-	private Quadratic quadratic;
+	/**
+	 * Parameter of the intersection on the Arc, NaN if none
+	 */
+	private double root;
 	
-	private double uSquare;
-	
-	private Pair<Double, Double> rootOnEdge;
-	
-	private Pair<Cartesian, Cartesian> intersections;
+	private Cartesian intersection;
 	
 	public ArcInterHS(Arc arc, Halfspace halfspace) {
-		this.arcVertex1 = arc.v1;
-		this.arcVertex2 = arc.v2;
-		
-		double uSquare = (1 - arc.cosAngular) / (1 + arc.cosAngular);
-		double gamma1 = halfspace.vector.dot(this.arcVertex1);
-		double gamma2 = halfspace.vector.dot(this.arcVertex2);
-		
-		double a = -uSquare * (gamma1 + halfspace.distance);
-		double b = gamma1 * (uSquare - 1) + gamma2 * (uSquare + 1);
-		double c = gamma1 - halfspace.distance;
-		
-		this.quadratic = new Quadratic(a, b, c);
-		this.uSquare = uSquare;
-		this.rootOnEdge = new Pair<Double, Double>(null, null);
-		this.intersections = null;
+		this.arc = arc;
+		this.root = rootOnEdge(arc, halfspace);
+		this.intersection = null;
 	}
 	
 	public boolean hasIntersection() {
-		if (quadratic.isQuadratic() && quadratic.numOfRoots() == 2) {
-			Pair<Double, Double> rootPair = quadratic.getRoots();
-			double r1 = rootPair.a;
-			double r2 = rootPair.b;
-			if (r1 > Constants.epsilon && r1 < 1 - Constants.epsilon) {
-				rootOnEdge.a = r1;
-				return true;
-			}
-			if (r2 > Constants.epsilon && r2 < 1 - Constants.epsilon) {
-				rootOnEdge.b = r2;
-				return true;
-			}
-		}
-		return false;
+		return !Double.isNaN(root);
 	}
 	
 	public Pair<Cartesian, Cartesian> getIntersections() {
-		if (intersections != null) {
-			return copyIntersections();
+		if (!hasIntersection()) {
+			return null;
+		}
+		if (intersection == null) {
+			double[] xyz = new double[3];
+			pointAt(arc, root, xyz);
+			intersection = new Cartesian(xyz[0], xyz[1], xyz[2]);
+		}
+		return new Pair<Cartesian, Cartesian>(new Cartesian(intersection), null);
+	}
+	
+	/**
+	 * Intersect an Arc with the constraint of a Halfspace, allocating nothing
+	 * @param arc
+	 * @param halfspace
+	 * @param point receives x, y, z of the intersection if any, may be null
+	 * @return true if intersects
+	 */
+	public static boolean intersect(Arc arc, Halfspace halfspace, double[] point) {
+		double root = rootOnEdge(arc, halfspace);
+		if (Double.isNaN(root)) {
+			return false;
 		}
-		if (hasIntersection()) {
-			intersections = new Pair<Cartesian, Cartesian>(null, null);
-			if (rootOnEdge.a != null) {
-				intersections.a = rootToCartesian(rootOnEdge.a);
-			}
-			if (rootOnEdge.b != null) {
-				intersections.b = rootToCartesian(rootOnEdge.b);
-			}
-			return copyIntersections();
+		if (point != null) {
+			pointAt(arc, root, point);
 		}
-		return null;
+		return true;
 	}
 	
-	private Pair<Cartesian, Cartesian> copyIntersections() {
-		if (intersections != null) {
-			Cartesian inter1 = null, inter2 = null;
-			if (intersections.a != null) {
-				inter1 = new Cartesian(intersections.a);
-			}
-			if (intersections.b != null) {
-				inter2 = new Cartesian(intersections.b);
-			}
-			return new Pair<Cartesian, Cartesian>(inter1, inter2);
+	/**
+	 * Parameter of the intersection of an Arc and the constraint of a Halfspace
+	 * Points of the Arc are parametrized by u in [0, 1] through the
+	 * tangent of half the angle from v1, which turns the intersection
+	 * into a quadratic equation of u.
+	 * Only intersections strictly inside the Arc count, and only when
+	 * the equation has 2 roots. The smaller root is taken if on the Arc,
+	 * else the bigger one.
+	 * @param arc
+	 * @param halfspace
+	 * @return root, NaN if no intersection
+	 */
+	public static double rootOnEdge(Arc arc, Halfspace halfspace) {
+		double uSquare = arc.uSquare;
+		Cartesian vector = halfspace.vector;
+		double gamma1 = vector.x * arc.v1.x + vector.y * arc.v1.y + vector.z * arc.v1.z;
+		double gamma2 = vector.x * arc.v2.x + vector.y * arc.v2.y + vector.z * arc.v2.z;
+		if (halfspace.distance != 0) {
+			// Compare with distance as if the vertices were on the sphere
+			gamma1 = gamma1 / arc.length1;
+			gamma2 = gamma2 / arc.length2;
+		}
+		
+		double a = -uSquare * (gamma1 + halfspace.distance);
+		double b = gamma1 * (uSquare - 1) + gamma2 * (uSquare + 1);
+		double c = gamma1 - halfspace.distance;
+		
+		if (a < Constants.epsilon && a > -Constants.epsilon) {
+			return Double.NaN;
+		}
+		double delta = b * b - 4 * a * c;
+		if (!(delta > Constants.epsilon)) {
+			return Double.NaN;
+		}
+		double r1 = (- b - Math.sqrt(delta)) / (2 * a);
+		if (r1 > Constants.epsilon && r1 < 1 - Constants.epsilon) {
+			return r1;
+		}
+		double r2 = (- b + Math.sqrt(delta)) / (2 * a);
+		if (r2 > Constants.epsilon && r2 < 1 - Constants.epsilon) {
+			return r2;
 		}
-		return null;
+		return Double.NaN;
 	}
 	
-	private Cartesian rootToCartesian(double root) {
-		Cartesian intersection = arcVertex1
-				.multiply(Constants.scale
-                        * (1 - root) * (1 + uSquare * root)
-                        / (1 + root * root * uSquare)
-                )
-				.add(arcVertex2
-                        .multiply(Constants.scale
-                                * root * (1 + uSquare)
-                                / (1 + root * root * uSquare)
-                        )
-                );
-		return intersection;
+	/**
+	 * Point of an Arc at a parameter, scaled to length scale
+	 * @param arc
+	 * @param root parameter, see rootOnEdge()
+	 * @param point receives x, y, z
+	 */
+	public static void pointAt(Arc arc, double root, double[] point) {
+		double uSquare = arc.uSquare;
+		double k1 = Constants.scale
+				* (1 - root) * (1 + uSquare * root)
+				/ (1 + root * root * uSquare);
+		double k2 = Constants.scale
+				* root * (1 + uSquare)
+				/ (1 + root * root * uSquare);
+		point[0] = arc.v1.x * k1 + arc.v2.x * k2;
+		point[1] = arc.v1.y * k1 + arc.v2.y * k2;
+		point[2] = arc.v1.z * k1 + arc.v2.z * k2;
 	}
 
 }
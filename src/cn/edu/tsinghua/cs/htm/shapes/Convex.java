@@ -2,6 +2,7 @@ package cn.edu.tsinghua.cs.htm.shapes;
 
 import java.util.*;
 
+import cn.edu.tsinghua.cs.htm.utils.Constants;
 import cn.edu.tsinghua.cs.htm.utils.Latlon2Cartesian;
 import cn.edu.tsinghua.cs.htm.utils.Sign;
 
@@ -16,6 +17,17 @@ public class Convex {
 	List<Halfspace> halfspaces;
 	List<Cartesian> vertices;
 	
+	/**
+	 * Number of points tested together by the batch filters
+	 */
+	private static final int blockSize = 1024;
+	
+	/**
+	 * Angle in radians added to bounding circles, far above the tolerance
+	 * of containment tests, so nothing they accept is left out
+	 */
+	private static final double boundingMargin = 1e-8;
+	
 	public Convex() {
 		halfspaces = new LinkedList<Halfspace>();
 		vertices = new LinkedList<Cartesian>();
@@ -81,6 +93,96 @@ public class Convex {
 		return true;
 	}
 	
+	/**
+	 * Batch form of containsStrict(Cartesian) on primitive coordinates
+	 * Same results as testing each point on its own
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param selected receives a set bit for each point inside, others cleared
+	 */
+	public void containsStrict(double[] x, double[] y, double[] z, BitSet selected) {
+		selected.clear(0, x.length);
+		filterStrict(x, y, z, selected, null);
+	}
+	
+	/**
+	 * Batch form of containsStrict(Cartesian) giving indices of points inside
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param indices receives indices of points inside in ascending order,
+	 * at least as long as x
+	 * @return number of points inside
+	 */
+	public int selectStrict(double[] x, double[] y, double[] z, int[] indices) {
+		return filterStrict(x, y, z, null, indices);
+	}
+	
+	/**
+	 * Test points in blocks, one Halfspace at a time over a whole block
+	 * For each point, keeps the smallest margin by which it passes a Halfspace,
+	 * i.e. vector.dot(p) - (threshold + epsilon) as in Halfspace.containsStrict(),
+	 * and a point is inside if that is positive, the same as passing all of them.
+	 * Loops over a Halfspace have no branches and index all arrays alike,
+	 * so the JIT compiles them to SIMD instructions.
+	 */
+	private int filterStrict(double[] x, double[] y, double[] z,
+			BitSet selected, int[] indices) {
+		int n = x.length;
+		if (y.length != n || z.length != n) {
+			throw new IllegalArgumentException("Coordinates of different lengths: "
+					+ n + ", " + y.length + ", " + z.length);
+		}
+		Halfspace[] array = halfspaces.toArray(new Halfspace[halfspaces.size()]);
+		boolean needLength = false;
+		for (Halfspace halfspace : array) {
+			needLength |= halfspace.distance != 0;
+		}
+		double[] margin = new double[n];
+		double[] length = needLength ? new double[n] : null;
+		
+		int count = 0;
+		for (int from = 0; from < n; from += blockSize) {
+			int to = Math.min(from + blockSize, n);
+			Arrays.fill(margin, from, to, Double.POSITIVE_INFINITY);
+			if (needLength) {
+				for (int i = from; i < to; i++) {
+					length[i] = Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+				}
+			}
+			
+			for (Halfspace halfspace : array) {
+				double vx = halfspace.vector.x, vy = halfspace.vector.y, vz = halfspace.vector.z;
+				double distance = halfspace.distance;
+				if (distance == 0) {
+					for (int i = from; i < to; i++) {
+						margin[i] = Math.min(margin[i],
+								vx * x[i] + vy * y[i] + vz * z[i] - Constants.epsilon);
+					}
+				} else {
+					for (int i = from; i < to; i++) {
+						margin[i] = Math.min(margin[i], vx * x[i] + vy * y[i] + vz * z[i]
+								- (distance * length[i] + Constants.epsilon));
+					}
+				}
+			}
+			
+			for (int i = from; i < to; i++) {
+				if (margin[i] > 0) {
+					if (selected != null) {
+						selected.set(i);
+					}
+					if (indices != null) {
+						indices[count] = i;
+					}
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
 	public boolean containsLoose(Cartesian point) {
 		for (Halfspace halfspace : halfspaces) {
 			if (!halfspace.containsLoose(point)) {
@@ -90,6 +192,55 @@ public class Convex {
 		return true;
 	}
 	
+	/**
+	 * A circle containing the whole Convex, for skipping what is far from it
+	 * The smaller of the smallest positive Halfspace and, if the vertices are
+	 * in convex position, the circle around them, widened by a small margin.
+	 * @return bounding circle, null if none is known
+	 */
+	public Halfspace getBoundingCircle() {
+		Halfspace smallest = null;
+		for (Halfspace halfspace : halfspaces) {
+			if (halfspace.getSign() == Sign.Positive
+					&& (smallest == null || halfspace.distance > smallest.distance)) {
+				smallest = halfspace;
+			}
+		}
+		double cosRadius = smallest == null ? 0 : smallest.distance / Constants.scale;
+		Cartesian center = smallest == null ? null : smallest.vector;
+		
+		// The Convex lies in the polygon of its vertices when every vertex
+		// is on the inner side of every great circle
+		if (vertices.size() >= 3) {
+			Cartesian sum = new Cartesian(0, 0, 0);
+			boolean convexPosition = true;
+			for (Cartesian vertex : vertices) {
+				sum = sum.add(vertex.normalize());
+				for (Halfspace halfspace : halfspaces) {
+					if (halfspace.getSign() == Sign.Zero && !halfspace.containsLoose(vertex.normalize())) {
+						convexPosition = false;
+					}
+				}
+			}
+			if (convexPosition && sum.length() > 0) {
+				Cartesian middle = sum.normalize();
+				double cosAround = 1;
+				for (Cartesian vertex : vertices) {
+					cosAround = Math.min(cosAround, middle.dot(vertex.normalize()));
+				}
+				if (cosAround > cosRadius) {
+					cosRadius = cosAround;
+					center = middle;
+				}
+			}
+		}
+		if (center == null || !(cosRadius > 0)) {
+			return null;
+		}
+		double radius = Math.acos(Math.min(cosRadius, 1)) + boundingMargin;
+		return new Halfspace(center.scaleTo(Constants.scale), Constants.scale * Math.cos(radius));
+	}
+	
 	public Sign getSign() {
 		Sign sign = Sign.Zero;
 		for (Halfspace halfspace : halfspaces) {
@@ -117,6 +268,44 @@ public class Convex {
 		return sign;
 	}
 	
+	/**
+	 * Canonical form of the Convex, for recognizing the same query
+	 * Each Halfspace becomes its unit normal and distance over scale,
+	 * rounded to multiples of epsilon.
+	 * Halfspaces are sorted, so the order or rotation of vertices
+	 * doesn't matter.
+	 * @return 4 longs per Halfspace
+	 */
+	public long[] getCanonicalForm() {
+		long[][] rounded = new long[halfspaces.size()][];
+		int i = 0;
+		for (Halfspace halfspace : halfspaces) {
+			Cartesian normal = halfspace.vector.normalize();
+			rounded[i++] = new long[] {
+					Math.round(normal.x / Constants.epsilon),
+					Math.round(normal.y / Constants.epsilon),
+					Math.round(normal.z / Constants.epsilon),
+					Math.round(halfspace.distance / Constants.scale / Constants.epsilon)};
+		}
+		Arrays.sort(rounded, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				for (int j = 0; j < 4; j++) {
+					int cmp = Long.compare(o1[j], o2[j]);
+					if (cmp != 0) {
+						return cmp;
+					}
+				}
+				return 0;
+			}
+		});
+		long[] form = new long[rounded.length * 4];
+		for (i = 0; i < rounded.length; i++) {
+			System.arraycopy(rounded[i], 0, form, i * 4, 4);
+		}
+		return form;
+	}
+	
 	private void smallestFirst() {
 		// Get the smallest Halfspace
 		Halfspace smallestHalfspace = halfspaces.get(0);
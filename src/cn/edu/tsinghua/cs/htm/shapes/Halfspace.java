@@ -1,6 +1,7 @@
 package cn.edu.tsinghua.cs.htm.shapes;
 
 import cn.edu.tsinghua.cs.htm.utils.Constants;
+import cn.edu.tsinghua.cs.htm.utils.Latlon2Cartesian;
 import cn.edu.tsinghua.cs.htm.utils.Sign;
 
 /**
@@ -8,6 +9,9 @@ import cn.edu.tsinghua.cs.htm.utils.Sign;
  * 1. a center-oriented unit vector orthogonal to the constraint plane;  
  * 2. a double representing the distance between the center and the plane,
  * which can be positive, negative or zero.
+ * Distance is the cosine of the angular radius times scale, and the vector
+ * is of length scale then. With distance zero, i.e. a great circle,
+ * the vector may be of any length, e.g. a cross product of vertices.
  * @author Haojia Zuo
  *
  */
@@ -16,9 +20,63 @@ public class Halfspace {
 	Cartesian vector;
 	double distance;
 	
+	/**
+	 * Cosine and sine of the angular radius
+	 * Kept so that overlap and containment tests need no trigonometry
+	 */
+	private final double cosRadius, sinRadius;
+	
+	/**
+	 * Length of vector, which is scale only for circles
+	 * Great circles built from vertices keep their cross products as is
+	 */
+	private final double vectorLength;
+	
 	public Halfspace(Cartesian vector, double distance) {
 		this.vector = vector;
 		this.distance = distance;
+		vectorLength = vector.length();
+		cosRadius = distance / Constants.scale;
+		sinRadius = Math.sqrt(1 - cosRadius * cosRadius);
+	}
+	
+	/**
+	 * Build a circular region by its center and angular radius
+	 * @param center any vector pointing to the center
+	 * @param radius angular radius in degrees
+	 * @return Halfspace
+	 */
+	public static Halfspace fromCircle(Cartesian center, double radius) {
+		Cartesian vector = center.scaleTo(Constants.scale);
+		double distance = Constants.scale * Math.cos(Math.PI * radius / 180.0);
+		return new Halfspace(vector, distance);
+	}
+	
+	/**
+	 * Parse a circle given as "x,y,z,radius" or "latitude,longitude,radius"
+	 * @param arg
+	 * @param latlon if center is given as latitude and longitude
+	 * @return Halfspace, null if illegal
+	 */
+	public static Halfspace parseCircle(String arg, boolean latlon) {
+		String[] values = arg.split(",");
+		if (values.length != (latlon ? 3 : 4)) {
+			return null;
+		}
+		double[] doubles = new double[values.length];
+		for (int i = 0; i < values.length; i++) {
+			doubles[i] = Double.parseDouble(values[i]);
+		}
+		Cartesian center;
+		if (latlon) {
+			center = Latlon2Cartesian.parse(doubles[0], doubles[1]);
+		} else {
+			center = new Cartesian(doubles[0], doubles[1], doubles[2]);
+		}
+		if (center.length() == 0) {
+			return null;
+		}
+		return fromCircle(center, doubles[values.length - 1]);
 	}
 	
 	/**
@@ -34,27 +92,61 @@ public class Halfspace {
 	
 	/**
 	 * Judge if two Halfspaces are mutually exclusive
+	 * That is, the angle between the centers is at least the sum of the radii.
+	 * When the sum is at most pi, compares cosines instead of angles:
+	 * cos(angle) <= cos(r1 + r2) = cos r1 cos r2 - sin r1 sin r2.
+	 * Out-of-range cosines give false, as acos() would give NaN.
 	 * @param that another Halfspace
 	 * @return true if exclusive
 	 */
 	public boolean exclusive(Halfspace that) {
-		double halfAngularThis = Math.acos(distance / Constants.scale);
-		double halfAngularThat = Math.acos(that.distance / Constants.scale);
-		double normsRelative = Math.acos(vector.dot(that.vector) / (Constants.scale * Constants.scale));
-		return (normsRelative >= halfAngularThis + halfAngularThat);
+		return exclusive(that.vector.x, that.vector.y, that.vector.z,
+				that.vectorLength, that.cosRadius, that.sinRadius);
+	}
+	
+	/**
+	 * Same as exclusive(Halfspace), with the other Halfspace given by its parts
+	 * so that circles kept in arrays need no objects
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param length length of (x, y, z)
+	 * @param cos cosine of the angular radius
+	 * @param sin sine of the angular radius
+	 * @return true if exclusive
+	 */
+	boolean exclusive(double x, double y, double z, double length, double cos, double sin) {
+		double cosRelative = (vector.x * x + vector.y * y + vector.z * z) / (vectorLength * length);
+		if (!(cosRelative >= -1) || cosRadius + cos < 0) {
+			// Sum of the radii more than pi
+			return false;
+		}
+		return (cosRelative <= cosRadius * cos - sinRadius * sin);
 	}
 	
 	/**
 	 * Judge if this Halfspace contains another one
+	 * That is, the radius of this minus that of that is at least the angle
+	 * between the centers, compared by cosines the same way as exclusive():
+	 * cos(angle) >= cos(r1 - r2) = cos r1 cos r2 + sin r1 sin r2.
 	 * @param that another Halfspace
 	 * @return true if this contains that
 	 */
 	public boolean contains(Halfspace that) {
-		double halfAngularThis = Math.acos(distance / Constants.scale);
-		double halfAngularThat = Math.acos(that.distance / Constants.scale);
-		double normsRelative = Math.acos(vector.dot(that.vector) / (Constants.scale * Constants.scale));
-		
-		return (halfAngularThis - halfAngularThat >= normsRelative);
+		double cosRelative = cosineTo(that);
+		if (!(cosRelative >= -1 && cosRelative <= 1) || cosRadius > that.cosRadius) {
+			// This one smaller than that
+			return false;
+		}
+		return (cosRadius * that.cosRadius + sinRadius * that.sinRadius <= cosRelative);
+	}
+	
+	/**
+	 * Cosine of the angle between the centers
+	 * NaN if either vector is zero, which makes both tests false
+	 */
+	private double cosineTo(Halfspace that) {
+		return vector.dot(that.vector) / (vectorLength * that.vectorLength);
 	}
 	
 	/**
@@ -64,7 +156,7 @@ public class Halfspace {
 	 * @return true if inside
 	 */
 	public boolean containsStrict(Cartesian p) {
-		 return (vector.dot(p) > distance + Constants.epsilon);
+		 return (vector.dot(p) > threshold(p) + Constants.epsilon);
 	}
 	
 	/**
@@ -74,7 +166,51 @@ public class Halfspace {
 	 * @return true if inside
 	 */
 	public boolean containsLoose(Cartesian p) {
-		 return (vector.dot(p) > distance - Constants.epsilon);
+		 return (vector.dot(p) > threshold(p) - Constants.epsilon);
+	}
+	
+	/**
+	 * Same as containsStrict(Cartesian), allocating nothing
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return true if inside
+	 */
+	public boolean containsStrict(double x, double y, double z) {
+		double threshold = 0;
+		if (distance != 0) {
+			threshold = distance * Math.sqrt(x * x + y * y + z * z);
+		}
+		return (vector.x * x + vector.y * y + vector.z * z > threshold + Constants.epsilon);
+	}
+	
+	/**
+	 * Same as containsLoose(Cartesian), allocating nothing
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return true if inside
+	 */
+	public boolean containsLoose(double x, double y, double z) {
+		double threshold = 0;
+		if (distance != 0) {
+			threshold = distance * Math.sqrt(x * x + y * y + z * z);
+		}
+		return (vector.x * x + vector.y * y + vector.z * z > threshold - Constants.epsilon);
+	}
+	
+	/**
+	 * Value of vector.dot(p) on the constraint in the direction of p
+	 * Trixel corners are not on the sphere, so a non-zero distance
+	 * is scaled by the length of p
+	 * @param p
+	 * @return threshold, zero if distance is zero
+	 */
+	private double threshold(Cartesian p) {
+		if (distance == 0) {
+			return 0;
+		}
+		return distance * p.length();
 	}
 	
 	/**
@@ -0,0 +1,75 @@
+package cn.edu.tsinghua.cs.htm.shapes;
+
+import java.util.*;
+
+/**
+ * Region is the union of Convexes.
+ * A Trixel is Full if any Convex covers it fully,
+ * and Outside only if it is outside all of them.
+ */
+public class Region {
+	
+	List<Convex> convexes;
+	
+	public Region() {
+		convexes = new ArrayList<Convex>();
+	}
+	
+	public Region(Collection<? extends Convex> convexes) {
+		this();
+		addConvexes(convexes);
+	}
+	
+	public void addConvex(Convex convex) {
+		if (convex != null) {
+			convexes.add(convex);
+		}
+	}
+	
+	public void addConvexes(Collection<? extends Convex> convexes) {
+		for (Convex convex : convexes) {
+			addConvex(convex);
+		}
+	}
+	
+	public List<Convex> getConvexes() {
+		return new ArrayList<Convex>(convexes);
+	}
+	
+	public boolean isEmpty() {
+		return convexes.isEmpty();
+	}
+	
+	public void clear() {
+		convexes.clear();
+	}
+	
+	public boolean containsStrict(Cartesian point) {
+		for (Convex convex : convexes) {
+			if (convex.containsStrict(point)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public boolean containsLoose(Cartesian point) {
+		for (Convex convex : convexes) {
+			if (convex.containsLoose(point)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public String toString() {
+		String str = "Region: {";
+		for (Convex convex : convexes) {
+			str += "\n    " + convex.toString().replace("\n", "\n    ");
+		}
+		str += "\n}";
+		return str;
+	}
+	
+}
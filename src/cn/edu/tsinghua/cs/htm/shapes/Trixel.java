@@ -2,10 +2,11 @@ package cn.edu.tsinghua.cs.htm.shapes;
 
 import java.util.*;
 
+import cn.edu.tsinghua.cs.htm.HTM;
+import cn.edu.tsinghua.cs.htm.Mesh;
 import cn.edu.tsinghua.cs.htm.utils.Constants;
 import cn.edu.tsinghua.cs.htm.utils.HTMid;
 import cn.edu.tsinghua.cs.htm.utils.Markup;
-import cn.edu.tsinghua.cs.htm.utils.Pair;
 import cn.edu.tsinghua.cs.htm.utils.Sign;
 
 /**
@@ -22,6 +23,11 @@ public class Trixel {
 	
 	protected HTMid htmId;
 	
+	/**
+	 * Bounding circle, taken from the Mesh or computed on first use
+	 */
+	protected volatile Halfspace boundingCircle;
+	
 	{
 		v = new Cartesian[3];
 		arcs = new Arc[3];
@@ -37,12 +43,38 @@ public class Trixel {
 		this.htmId = htmId;
 	}
 	
+	/**
+	 * Trixel whose bounding circle is known, e.g. from the Mesh
+	 * @param v0
+	 * @param v1
+	 * @param v2
+	 * @param htmId
+	 * @param boundingCircle same as getBoundingCircle() would compute
+	 */
+	public Trixel(Cartesian v0, Cartesian v1, Cartesian v2, HTMid htmId,
+			Halfspace boundingCircle) {
+		this(v0, v1, v2, htmId);
+		this.boundingCircle = boundingCircle;
+	}
+	
 	/**
 	 * Split a Trixel into 4 children
+	 * Children at levels in the Mesh are taken from it,
+	 * shared down to Mesh.objectLevelLimit
 	 * @return List of 4 child Trixels
 	 */
 	public List<Trixel> expand() {
-		List<Trixel> children = new ArrayList<Trixel>();
+		List<Trixel> children = new ArrayList<Trixel>(4);
+		
+		Mesh mesh = HTM.getInstance().getMesh();
+		int level = htmId.getLevel() + 1;
+		if (mesh.covers(level)) {
+			long child = htmId.getId() << 2;
+			for (int i = 0; i < 4; i++) {
+				children.add(mesh.getTrixel(child + i, level));
+			}
+			return children;
+		}
 		
 		Cartesian w0 = Cartesian.getMiddle(v[1], v[2]);
 		Cartesian w1 = Cartesian.getMiddle(v[0], v[2]);
@@ -56,6 +88,25 @@ public class Trixel {
 		return children;
 	}
 	
+	/**
+	 * Move this Trixel to other corners, keeping its Cartesians and Arcs
+	 * Lets TrixelBuffer classify entries without making a Trixel for each.
+	 * The HTMid is left as is.
+	 * @param c corners, x, y, z each
+	 * @param offset index of the first corner's x in c
+	 */
+	void load(double[] c, int offset) {
+		for (int i = 0; i < 3; i++) {
+			v[i].x = c[offset + i * 3];
+			v[i].y = c[offset + i * 3 + 1];
+			v[i].z = c[offset + i * 3 + 2];
+		}
+		for (int i = 0; i < 3; i++) {
+			arcs[i].set(v[i], v[(i + 1) % 3]);
+		}
+		boundingCircle = null;
+	}
+	
 	/**
 	 * Get the Trixel's space relation to a Convex
 	 * @param convex
@@ -121,6 +172,7 @@ public class Trixel {
 		}
 		
 		// The smallest Halfspace is put at first when constructing convex
+		double[] point = new double[3];
 		for (Halfspace halfspace : convex.halfspaces) {
 			// Are there any intersection between
 			// any edge and any Halfspace
@@ -128,48 +180,25 @@ public class Trixel {
 			
 			// Check 3 edges
 			for (int i = 0; i < 3; i++) {
-				Arc arc = arcs[i];
-				ArcInterHS intersect = arc.intersectHalfspace(halfspace);
-				
 				// This edge intersects with this halfspace
-				if (intersect.hasIntersection()) {
+				if (ArcInterHS.intersect(arcs[i], halfspace, point)) {
 					anyIntersection = true;
 					
-					Pair<Cartesian, Cartesian> intersections =
-							intersect.getIntersections();
-					
 					// If a good intersection, i.e. in all other Halfspaces 
 					// then Partial
-					if (intersections.a != null) {
-						boolean insideAllOthers = true;
-						for (Halfspace another : convex.halfspaces) {
-							if (another != halfspace &&
-									!another.containsLoose(intersections.a)) {
-								insideAllOthers = false;
-								break;
-							}
-						}
-						if (insideAllOthers) {
-							return Markup.Partial;
+					boolean insideAllOthers = true;
+					for (Halfspace another : convex.halfspaces) {
+						if (another != halfspace &&
+								!another.containsLoose(point[0], point[1], point[2])) {
+							insideAllOthers = false;
+							break;
 						}
 					}
-					
-					// Same as above
-					if (intersections.b != null) {
-						boolean insideAllOthers = true;
-						for (Halfspace another : convex.halfspaces) {
-							if (another != halfspace &&
-									!another.containsLoose(intersections.b)) {
-								insideAllOthers = false;
-								break;
-							}
-						}
-						if (insideAllOthers) {
-							return Markup.Partial;
-						}
+					if (insideAllOthers) {
+						return Markup.Partial;
 					}
 					
-					// Here, both intersections are bad
+					// Here, the intersection is bad
 					// No hurry, we will check the next edge
 				}
 				
@@ -252,8 +281,7 @@ public class Trixel {
 			for (int i = 0; i < 3; i++) {
 				Arc arc = arcs[i];
 				for (Halfspace halfspace : convex.halfspaces) {
-					ArcInterHS intersect = arc.intersectHalfspace(halfspace);
-					if (intersect.hasIntersection()) {
+					if (arc.crosses(halfspace)) {
 						return Markup.Partial;
 					}
 				}
@@ -271,8 +299,7 @@ public class Trixel {
 			for (int i = 0; i < 3; i++) {
 				Arc arc = arcs[i];
 				for (Halfspace halfspace : convex.halfspaces) {
-					ArcInterHS intersect = arc.intersectHalfspace(halfspace);
-					if (intersect.hasIntersection()) {
+					if (arc.crosses(halfspace)) {
 						return Markup.Partial;
 					}
 				}
@@ -298,8 +325,7 @@ public class Trixel {
 			for (int i = 0; i < 3; i++) {
 				Arc arc = arcs[i];
 				for (Halfspace halfspace : convex.halfspaces) {
-					ArcInterHS intersect = arc.intersectHalfspace(halfspace);
-					if (intersect.hasIntersection()) {
+					if (arc.crosses(halfspace)) {
 						return Markup.Partial;
 					}
 				}
@@ -322,6 +348,32 @@ public class Trixel {
 		}
 	}
 	
+	/**
+	 * Get the Trixel's space relation to a Region
+	 * Full if Full to any Convex, Outside if Outside all Convexes
+	 * @param region
+	 * @return Enumeration type Markup: Full, Partial, Outside or Undefined
+	 */
+	public Markup getMarkup(Region region) {
+		if (region == null || region.convexes.isEmpty()) {
+			return Markup.Undefined;
+		}
+		
+		boolean anyPartial = false;
+		for (Convex convex : region.convexes) {
+			switch (getMarkup(convex)) {
+			case Full:
+				return Markup.Full;
+			case Partial:
+				anyPartial = true;
+				break;
+			default:
+				break;
+			}
+		}
+		return anyPartial ? Markup.Partial : Markup.Outside;
+	}
+	
 	/**
 	 * Get the Trixel's space relation to a Halfspace
 	 * @param halfspace
@@ -350,6 +402,18 @@ public class Trixel {
 		}
 		
 		if (insideCornersCount == 3) {
+			if (halfspace.getSign() == Sign.Negative) {
+				// A negative Halfspace is not convex,
+				// its hole may cut an edge or lie inside the Trixel
+				for (int i = 0; i < 3; i++) {
+					if (arcs[i].crosses(halfspace)) {
+						return Markup.Partial;
+					}
+				}
+				if (this.containsStrict(halfspace.vector.multiply(-1))) {
+					return Markup.Partial;
+				}
+			}
 			return Markup.Full;
 		} else if (insideCornersCount > 0) {
 			return Markup.Partial;
@@ -364,9 +428,7 @@ public class Trixel {
 		
 		// If Halfspace intersects any side, then partial
 		for (int i = 0; i < 3; i++) {
-			Arc arc = arcs[i];
-			ArcInterHS intersect = arc.intersectHalfspace(halfspace);
-			if (intersect.hasIntersection()) {
+			if (arcs[i].crosses(halfspace)) {
 				return Markup.Partial;
 			}
 		}
@@ -428,12 +490,18 @@ public class Trixel {
 	
 	/**
 	 * Get the Trixel's bounding circle in the form of Halfspace
+	 * Computed once and kept
 	 * @return bounding circle as Halfspace object
 	 */
-	protected Halfspace getBoundingCircle() {
-		Cartesian vb = v[1].sub(v[0]).cross(v[2].sub(v[1])).scaleTo(Constants.scale);
-		double db = v[0].dot(vb) / Constants.scale;
-		return new Halfspace(vb, db);
+	public Halfspace getBoundingCircle() {
+		Halfspace circle = boundingCircle;
+		if (circle == null) {
+			Cartesian vb = v[1].sub(v[0]).cross(v[2].sub(v[1])).scaleTo(Constants.scale);
+			double db = v[0].dot(vb) / Constants.scale;
+			circle = new Halfspace(vb, db);
+			boundingCircle = circle;
+		}
+		return circle;
 	}
 	
 	/**
@@ -443,34 +511,7 @@ public class Trixel {
 	 * @return true if p in Trixel
 	 */
 	public boolean containsStrict(Cartesian p) {
-		Halfspace boundingCircle = getBoundingCircle();
-		if(!boundingCircle.containsLoose(p)) {
-			return false;
-		}
-		
-		// Get the intersection point
-		// of vector p and the Trixel's cutting plane
-		double lambda = boundingCircle.distance / (p.dot(boundingCircle.vector) / Constants.scale);
-		Cartesian inPlane = p.multiply(lambda);
-		
-		// Then it's judging if point in triangular in 2D
-		Cartesian pa = v[0].sub(inPlane);
-		Cartesian pb = v[1].sub(inPlane);
-		Cartesian pc = v[2].sub(inPlane);
-		Cartesian cross1 = pa.cross(pb);
-		Cartesian cross2 = pb.cross(pc);
-		Cartesian cross3 = pc.cross(pa);
-		
-		if (cross1.dot(cross2) < Constants.epsilon) {
-			return false;
-		}
-		if (cross2.dot(cross3) < Constants.epsilon) {
-			return false;
-		}
-		if (cross3.dot(cross1) < Constants.epsilon) {
-			return false;
-		}
-		return true;
+		return contains(p, true);
 	}
 	
 	/**
@@ -480,31 +521,65 @@ public class Trixel {
 	 * @return true if p in Trixel
 	 */
 	public boolean containsLoose(Cartesian p) {
-		Halfspace boundingCircle = getBoundingCircle();
-		if(!boundingCircle.containsLoose(p)) {
+		return contains(p, false);
+	}
+	
+	/**
+	 * Judge if point p in the Trixel, with the bounding circle kept
+	 * @param p
+	 * @param strict
+	 * @return true if p in Trixel
+	 */
+	private boolean contains(Cartesian p, boolean strict) {
+		Halfspace circle = getBoundingCircle();
+		Cartesian n = circle.vector;
+		return contains(v[0].x, v[0].y, v[0].z, v[1].x, v[1].y, v[1].z,
+				v[2].x, v[2].y, v[2].z, n.x, n.y, n.z, circle.distance,
+				p.x, p.y, p.z, strict);
+	}
+	
+	/**
+	 * Judge if point p in Trixel (a, b, c) with bounding circle (n, d)
+	 * The one point-in-Trixel test, shared by containsStrict(), containsLoose()
+	 * and HTM.encode(), so all of them give the HTMids of the original descent.
+	 * p must be on the inner side of the bounding circle's plane, compared
+	 * with d itself as the original did, not d times the length of p as in
+	 * Halfspace.containsLoose(). Then p is projected onto that plane, and the
+	 * cross products of the corners seen from the projection must point
+	 * the same way.
+	 * @param strict if on edge case is judged false
+	 * @return true if p in Trixel
+	 */
+	public static boolean contains(double ax, double ay, double az,
+			double bx, double by, double bz,
+			double cx, double cy, double cz,
+			double nx, double ny, double nz, double d,
+			double px, double py, double pz, boolean strict) {
+		double pn = nx * px + ny * py + nz * pz;
+		if (!(pn > d - Constants.epsilon)) {
 			return false;
 		}
 		
-		// Get the intersection point
-		// of vector p and the Trixel's cutting plane
-		double lambda = boundingCircle.distance / (p.dot(boundingCircle.vector) / Constants.scale);
-		Cartesian inPlane = p.multiply(lambda);
+		// Intersection of vector p and the Trixel's cutting plane
+		double lambda = d / (pn / Constants.scale);
+		double qx = px * lambda, qy = py * lambda, qz = pz * lambda;
 		
-		// Then it's judging if point in triangular in 2D
-		Cartesian pa = v[0].sub(inPlane);
-		Cartesian pb = v[1].sub(inPlane);
-		Cartesian pc = v[2].sub(inPlane);
-		Cartesian cross1 = pa.cross(pb);
-		Cartesian cross2 = pb.cross(pc);
-		Cartesian cross3 = pc.cross(pa);
+		double pax = ax - qx, pay = ay - qy, paz = az - qz;
+		double pbx = bx - qx, pby = by - qy, pbz = bz - qz;
+		double pcx = cx - qx, pcy = cy - qy, pcz = cz - qz;
 		
-		if (cross1.dot(cross2) < -Constants.epsilon) {
+		double c1x = pay * pbz - paz * pby, c1y = paz * pbx - pax * pbz, c1z = pax * pby - pay * pbx;
+		double c2x = pby * pcz - pbz * pcy, c2y = pbz * pcx - pbx * pcz, c2z = pbx * pcy - pby * pcx;
+		double c3x = pcy * paz - pcz * pay, c3y = pcz * pax - pcx * paz, c3z = pcx * pay - pcy * pax;
+		
+		double threshold = strict ? Constants.epsilon : -Constants.epsilon;
+		if (c1x * c2x + c1y * c2y + c1z * c2z < threshold) {
 			return false;
 		}
-		if (cross2.dot(cross3) < -Constants.epsilon) {
+		if (c2x * c3x + c2y * c3y + c2z * c3z < threshold) {
 			return false;
 		}
-		if (cross3.dot(cross1) < -Constants.epsilon) {
+		if (c3x * c1x + c3y * c1y + c3z * c1z < threshold) {
 			return false;
 		}
 		return true;
@@ -514,4 +589,26 @@ public class Trixel {
 		return htmId;
 	}
 	
+	/**
+	 * Get the area of the Trixel as a spherical triangle
+	 * @return area in steradians
+	 */
+	public double getArea() {
+		Cartesian a = v[0].normalize();
+		Cartesian b = v[1].normalize();
+		Cartesian c = v[2].normalize();
+		double triple = a.dot(b.cross(c));
+		double denominator = 1 + a.dot(b) + b.dot(c) + c.dot(a);
+		return 2 * Math.atan2(Math.abs(triple), denominator);
+	}
+	
+	/**
+	 * Get one of the three corners
+	 * @param i 0, 1 or 2
+	 * @return corner as Cartesian
+	 */
+	public Cartesian getCorner(int i) {
+		return v[i];
+	}
+	
 }
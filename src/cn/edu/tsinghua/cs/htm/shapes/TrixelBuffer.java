@@ -0,0 +1,331 @@
+package cn.edu.tsinghua.cs.htm.shapes;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import cn.edu.tsinghua.cs.htm.HTM;
+import cn.edu.tsinghua.cs.htm.Mesh;
+import cn.edu.tsinghua.cs.htm.utils.Constants;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+import cn.edu.tsinghua.cs.htm.utils.Markup;
+import cn.edu.tsinghua.cs.htm.utils.Sign;
+
+/**
+ * Growable list of Trixels kept in primitive arrays
+ * Stores only the HTMid in long form, the 9 doubles of the corners
+ * and the markup, instead of a Trixel with its Cartesians, Arcs and HTMid.
+ * Entries are classified on the arrays, and Trixel objects are made
+ * on demand by getTrixel().
+ */
+public class TrixelBuffer {
+
+	private long[] ids;
+
+	/**
+	 * 3 corners per Trixel, x, y, z each
+	 */
+	private double[] corners;
+
+	/**
+	 * Markup of each entry, null until classified
+	 */
+	private Markup[] markups;
+
+	private int size;
+
+	/**
+	 * Trixel moved to the entries that the arrays don't decide
+	 */
+	private Trixel scratch;
+
+	public TrixelBuffer(int capacity) {
+		capacity = Math.max(capacity, 4);
+		ids = new long[capacity];
+		corners = new double[capacity * 9];
+		markups = new Markup[capacity];
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public long getId(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * Append a Trixel
+	 * @param t
+	 */
+	public void add(Trixel t) {
+		ensureCapacity(size + 1);
+		ids[size] = t.htmId.getId();
+		markups[size] = null;
+		int o = size * 9;
+		for (int i = 0; i < 3; i++) {
+			corners[o + i * 3] = t.v[i].x;
+			corners[o + i * 3 + 1] = t.v[i].y;
+			corners[o + i * 3 + 2] = t.v[i].z;
+		}
+		size++;
+	}
+
+	/**
+	 * Append the 4 children of a Trixel in this buffer to another buffer
+	 * Same children, in the same order, as Trixel.expand()
+	 * @param i index of the parent
+	 * @param to buffer to append to, not this one
+	 */
+	public void addChildren(int i, TrixelBuffer to) {
+		to.ensureCapacity(to.size + 4);
+		int p = i * 9;
+		double[] c = corners;
+		double v0x = c[p], v0y = c[p + 1], v0z = c[p + 2];
+		double v1x = c[p + 3], v1y = c[p + 4], v1z = c[p + 5];
+		double v2x = c[p + 6], v2y = c[p + 7], v2z = c[p + 8];
+		double w0x = (v1x + v2x) / 2, w0y = (v1y + v2y) / 2, w0z = (v1z + v2z) / 2;
+		double w1x = (v0x + v2x) / 2, w1y = (v0y + v2y) / 2, w1z = (v0z + v2z) / 2;
+		double w2x = (v0x + v1x) / 2, w2y = (v0y + v1y) / 2, w2z = (v0z + v1z) / 2;
+
+		long child = ids[i] << 2;
+		to.put(child, v0x, v0y, v0z, w2x, w2y, w2z, w1x, w1y, w1z);
+		to.put(child + 1, v1x, v1y, v1z, w0x, w0y, w0z, w2x, w2y, w2z);
+		to.put(child + 2, v2x, v2y, v2z, w1x, w1y, w1z, w0x, w0y, w0z);
+		to.put(child + 3, w0x, w0y, w0z, w1x, w1y, w1z, w2x, w2y, w2z);
+	}
+
+	private void put(long id, double ax, double ay, double az,
+			double bx, double by, double bz, double cx, double cy, double cz) {
+		ids[size] = id;
+		int o = size * 9;
+		corners[o] = ax;
+		corners[o + 1] = ay;
+		corners[o + 2] = az;
+		corners[o + 3] = bx;
+		corners[o + 4] = by;
+		corners[o + 5] = bz;
+		corners[o + 6] = cx;
+		corners[o + 7] = cy;
+		corners[o + 8] = cz;
+		size++;
+	}
+
+	/**
+	 * Make a Trixel object of an entry
+	 * Same as the Trixel that Trixel.expand() would give,
+	 * taken from the Mesh if it has the entry
+	 * @param i index
+	 * @return Trixel
+	 */
+	public Trixel getTrixel(int i) {
+		Mesh mesh = HTM.getInstance().getMesh();
+		int level = HTMid.getLevel(ids[i]);
+		if (mesh.covers(level)) {
+			return mesh.getTrixel(ids[i], level);
+		}
+		int o = i * 9;
+		double[] c = corners;
+		return new Trixel(new Cartesian(c[o], c[o + 1], c[o + 2]),
+				new Cartesian(c[o + 3], c[o + 4], c[o + 5]),
+				new Cartesian(c[o + 6], c[o + 7], c[o + 8]),
+				new HTMid(ids[i]));
+	}
+
+	/**
+	 * Markup of an entry given by the last classify()
+	 * @param i index
+	 * @return Markup, null if not classified
+	 */
+	public Markup getMarkup(int i) {
+		return markups[i];
+	}
+
+	/**
+	 * Classify an entry against a Convex and keep the markup
+	 * Same as Trixel.getMarkup(Convex). Corners and the bounding circle
+	 * are tested on the arrays, which decides most entries, and only
+	 * the rest are passed to a Trixel object, reused for all of them.
+	 * @param i index
+	 * @param convex
+	 * @return Enumeration type Markup: Full, Partial, Outside or Undefined
+	 */
+	public Markup classify(int i, Convex convex) {
+		markups[i] = markupOf(i, convex);
+		return markups[i];
+	}
+
+	/**
+	 * Classify an entry against a Halfspace and keep the markup
+	 * Same as Trixel.getMarkup(Halfspace), decided on the arrays
+	 * the same way as classify(int, Convex)
+	 * @param i index
+	 * @param halfspace
+	 * @return Enumeration type Markup: Full, Partial, Outside or Undefined
+	 */
+	public Markup classify(int i, Halfspace halfspace) {
+		Markup markup = null;
+		if (halfspace != null && halfspace.getSign() != Sign.Negative) {
+			int insideCornersCount = 0;
+			int onConstraintCount = 0;
+			boolean hasAbsolutelyOutside = false;
+			for (int o = i * 9; o < i * 9 + 9; o += 3) {
+				double x = corners[o], y = corners[o + 1], z = corners[o + 2];
+				if (halfspace.containsStrict(x, y, z)) {
+					insideCornersCount++;
+				} else if (halfspace.containsLoose(x, y, z)) {
+					onConstraintCount++;
+				} else {
+					hasAbsolutelyOutside = true;
+				}
+			}
+			if (!hasAbsolutelyOutside) {
+				insideCornersCount += onConstraintCount;
+			}
+			if (insideCornersCount == 3) {
+				markup = Markup.Full;
+			} else if (insideCornersCount > 0) {
+				markup = Markup.Partial;
+			} else if (!overlapsBoundingCircle(i, halfspace)) {
+				markup = Markup.Outside;
+			}
+		}
+		if (markup == null) {
+			markup = scratch(i).getMarkup(halfspace);
+		}
+		markups[i] = markup;
+		return markup;
+	}
+
+	/**
+	 * Classify an entry against a Region and keep the markup
+	 * Same as Trixel.getMarkup(Region)
+	 * @param i index
+	 * @param region
+	 * @return Enumeration type Markup: Full, Partial, Outside or Undefined
+	 */
+	public Markup classify(int i, Region region) {
+		Markup markup;
+		if (region == null || region.convexes.isEmpty()) {
+			markup = Markup.Undefined;
+		} else {
+			markup = Markup.Outside;
+			for (Convex convex : region.convexes) {
+				Markup convexMarkup = markupOf(i, convex);
+				if (convexMarkup == Markup.Full) {
+					markup = Markup.Full;
+					break;
+				} else if (convexMarkup == Markup.Partial) {
+					markup = Markup.Partial;
+				}
+			}
+		}
+		markups[i] = markup;
+		return markup;
+	}
+
+	/**
+	 * Markup of an entry against a Convex
+	 * Positive and zero-signed Convexes are decided here as in
+	 * Trixel.getMarkupPositive() as far as the bounding circle test,
+	 * everything else by the scratch Trixel.
+	 */
+	private Markup markupOf(int i, Convex convex) {
+		if (convex != null && !convex.halfspaces.isEmpty()) {
+			Sign sign = convex.getSign();
+			if (sign == Sign.Positive || sign == Sign.Zero) {
+				int insideCornersCount = numOfInsideCorners(i, convex.halfspaces);
+				if (insideCornersCount == 3) {
+					return Markup.Full;
+				} else if (insideCornersCount > 0) {
+					return Markup.Partial;
+				}
+				for (Halfspace halfspace : convex.halfspaces) {
+					if (!overlapsBoundingCircle(i, halfspace)) {
+						return Markup.Outside;
+					}
+				}
+			}
+		}
+		return scratch(i).getMarkup(convex);
+	}
+
+	/**
+	 * The scratch Trixel moved to an entry
+	 */
+	private Trixel scratch(int i) {
+		if (scratch == null) {
+			scratch = new Trixel(new Cartesian(), new Cartesian(), new Cartesian(), null);
+		}
+		scratch.load(corners, i * 9);
+		return scratch;
+	}
+
+	/**
+	 * Same as Trixel.numOfInsideCorners()
+	 */
+	private int numOfInsideCorners(int i, Collection<Halfspace> halfspaces) {
+		int insideCornersCount = 0;
+		int onConstraintCount = 0;
+		boolean hasAbsolutelyOutside = false;
+		for (int o = i * 9; o < i * 9 + 9; o += 3) {
+			double x = corners[o], y = corners[o + 1], z = corners[o + 2];
+			boolean insideAllStrict = true;
+			boolean absolutelyOutside = false;
+			for (Halfspace halfspace : halfspaces) {
+				if (!halfspace.containsLoose(x, y, z)) {
+					hasAbsolutelyOutside = true;
+					absolutelyOutside = true;
+					insideAllStrict = false;
+					break;
+				} else if (!halfspace.containsStrict(x, y, z)) {
+					insideAllStrict = false;
+				}
+			}
+			if (insideAllStrict) {
+				insideCornersCount++;
+			} else if (!absolutelyOutside) {
+				onConstraintCount++;
+			}
+		}
+		if (!hasAbsolutelyOutside) {
+			insideCornersCount += onConstraintCount;
+		}
+		return insideCornersCount;
+	}
+
+	/**
+	 * Same as halfspace.overlap(t.getBoundingCircle()) for the Trixel t
+	 * of an entry, with the circle computed the same way on the arrays
+	 */
+	private boolean overlapsBoundingCircle(int i, Halfspace halfspace) {
+		int o = i * 9;
+		double[] c = corners;
+		double e1x = c[o + 3] - c[o], e1y = c[o + 4] - c[o + 1], e1z = c[o + 5] - c[o + 2];
+		double e2x = c[o + 6] - c[o + 3], e2y = c[o + 7] - c[o + 4], e2z = c[o + 8] - c[o + 5];
+		double nx = e1y * e2z - e1z * e2y;
+		double ny = e1z * e2x - e1x * e2z;
+		double nz = e1x * e2y - e1y * e2x;
+		double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		nx = nx * Constants.scale / len;
+		ny = ny * Constants.scale / len;
+		nz = nz * Constants.scale / len;
+		double cos = (c[o] * nx + c[o + 1] * ny + c[o + 2] * nz) / Constants.scale / Constants.scale;
+		double sin = Math.sqrt(1 - cos * cos);
+		return !halfspace.exclusive(nx, ny, nz, Math.sqrt(nx * nx + ny * ny + nz * nz), cos, sin);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > ids.length) {
+			int newCapacity = Math.max(capacity, ids.length * 2);
+			ids = Arrays.copyOf(ids, newCapacity);
+			corners = Arrays.copyOf(corners, newCapacity * 9);
+			markups = Arrays.copyOf(markups, newCapacity);
+		}
+	}
+
+}
@@ -0,0 +1,958 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A compressed bitmap of HTMids of the same level
+ * HTMids are split into chunks of 2^16 by their high bits, as in Roaring
+ * bitmaps. Each non-empty chunk keeps its low 16 bits in whichever container
+ * is smallest: a sorted array, a plain bitmap or a list of runs.
+ * Dense or ragged covers at deep levels take far less memory than ranges,
+ * while contains() needs a binary search on chunks and one inside a chunk.
+ * Containers are never modified, so they are shared between bitmaps.
+ */
+public class HTMBitmap implements HTMRangeSet {
+
+	private static final int chunkBits = 16;
+
+	private static final int chunkSize = 1 << chunkBits;
+
+	private static final int chunkMask = chunkSize - 1;
+
+	/**
+	 * Above this cardinality a bitmap container is never larger than an array
+	 */
+	private static final int maxArraySize = 4096;
+
+	private int level;
+
+	/**
+	 * High bits of HTMids of each chunk, ascending
+	 */
+	private long[] keys;
+
+	private Container[] containers;
+
+	private int size;
+
+	/**
+	 * @param ranges set to convert, its level is kept
+	 */
+	public HTMBitmap(HTMRangeSet ranges) {
+		Builder builder = new Builder();
+		ranges.forEachRange(builder);
+		builder.finish();
+		level = ranges.getLevel();
+		keys = builder.keys;
+		containers = builder.containers;
+		size = builder.size;
+	}
+
+	private HTMBitmap(int level, long[] keys, Container[] containers, int size) {
+		this.level = level;
+		this.keys = keys;
+		this.containers = containers;
+		this.size = size;
+	}
+
+	/**
+	 * Pick the smaller representation of ranges
+	 * Sparse covers stay as ranges, dense or ragged ones become bitmaps.
+	 * @param ranges
+	 * @return ranges itself or an HTMBitmap
+	 */
+	public static HTMRangeSet choose(HTMRanges ranges) {
+		// Estimate without building, and give up as soon as it's larger
+		long limit = ranges.getSizeInBytes();
+		SizeEstimator estimator = new SizeEstimator();
+		for (int i = 0; i < ranges.size(); i++) {
+			estimator.accept(ranges.getLowerBound(i), ranges.getUpperBound(i));
+			if (estimator.bytes >= limit) {
+				return ranges;
+			}
+		}
+		estimator.finish();
+		if (estimator.bytes >= limit) {
+			return ranges;
+		}
+		return new HTMBitmap(ranges);
+	}
+
+	@Override
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Number of HTMids in the set
+	 * @return cardinality
+	 */
+	public long getCardinality() {
+		long cardinality = 0;
+		for (int i = 0; i < size; i++) {
+			cardinality += containers[i].cardinality();
+		}
+		return cardinality;
+	}
+
+	@Override
+	public boolean contains(long hid) {
+		int thatLevel = HTMid.getLevel(hid);
+		if (thatLevel < 0) {
+			return false;
+		}
+		if (level <= thatLevel) {
+			return containsId(hid >> 2 * (thatLevel - level));
+		}
+		int shiftBits = 2 * (level - thatLevel);
+		long lo = hid << shiftBits;
+		long hi = lo + ((1L << shiftBits) - 1);
+		// Every chunk in between must be there and full
+		int i = indexOf(lo >>> chunkBits);
+		for (long key = lo >>> chunkBits; key <= hi >>> chunkBits; key++, i++) {
+			if (i < 0 || i >= size || keys[i] != key) {
+				return false;
+			}
+			int from = key == lo >>> chunkBits ? (int) (lo & chunkMask) : 0;
+			int to = key == hi >>> chunkBits ? (int) (hi & chunkMask) : chunkMask;
+			if (!containers[i].containsRange(from, to)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Chunks are looked up again only when the high bits change,
+	 * so sorted HTMids of this level are fastest.
+	 */
+	@Override
+	public void contains(long[] hids, BitSet out) {
+		out.clear(0, hids.length);
+		long lastKey = -1;
+		Container lastContainer = null;
+		for (int i = 0; i < hids.length; i++) {
+			long hid = hids[i];
+			if (HTMid.getLevel(hid) != level) {
+				if (contains(hid)) {
+					out.set(i);
+				}
+				continue;
+			}
+			long key = hid >>> chunkBits;
+			if (key != lastKey) {
+				int index = indexOf(key);
+				lastKey = key;
+				lastContainer = index >= 0 ? containers[index] : null;
+			}
+			if (lastContainer != null && lastContainer.contains((int) (hid & chunkMask))) {
+				out.set(i);
+			}
+		}
+	}
+
+	@Override
+	public boolean overlaps(long hid) {
+		int thatLevel = HTMid.getLevel(hid);
+		if (thatLevel < 0) {
+			return false;
+		}
+		if (level <= thatLevel) {
+			return containsId(hid >> 2 * (thatLevel - level));
+		}
+		int shiftBits = 2 * (level - thatLevel);
+		long lo = hid << shiftBits;
+		long hi = lo + ((1L << shiftBits) - 1);
+		// Any chunk in between, present chunks are never empty
+		int i = indexOf(lo >>> chunkBits);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		for (; i < size && keys[i] <= hi >>> chunkBits; i++) {
+			int from = keys[i] == lo >>> chunkBits ? (int) (lo & chunkMask) : 0;
+			int to = keys[i] == hi >>> chunkBits ? (int) (hi & chunkMask) : chunkMask;
+			if (containers[i].intersectsRange(from, to)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean containsId(long hid) {
+		int i = indexOf(hid >>> chunkBits);
+		return i >= 0 && containers[i].contains((int) (hid & chunkMask));
+	}
+
+	private int indexOf(long key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	/**
+	 * Intersection of two sets
+	 * Sets of different levels are intersected as ranges, at the finer level.
+	 * @param that
+	 * @return new HTMBitmap
+	 */
+	public HTMBitmap and(HTMBitmap that) {
+		if (level != that.level) {
+			return new HTMBitmap(toRanges().intersect(that.toRanges()));
+		}
+		int capacity = Math.min(size, that.size);
+		long[] newKeys = new long[capacity];
+		Container[] newContainers = new Container[capacity];
+		int n = 0, i = 0, j = 0;
+		while (i < size && j < that.size) {
+			if (keys[i] < that.keys[j]) {
+				i++;
+			} else if (keys[i] > that.keys[j]) {
+				j++;
+			} else {
+				Container c = Container.and(containers[i], that.containers[j]);
+				if (c != null) {
+					newKeys[n] = keys[i];
+					newContainers[n] = c;
+					n++;
+				}
+				i++;
+				j++;
+			}
+		}
+		return new HTMBitmap(level, newKeys, newContainers, n);
+	}
+
+	/**
+	 * Union of two sets
+	 * Sets of different levels are united as ranges, at the finer level.
+	 * @param that
+	 * @return new HTMBitmap
+	 */
+	public HTMBitmap or(HTMBitmap that) {
+		if (level != that.level) {
+			return new HTMBitmap(toRanges().union(that.toRanges()));
+		}
+		int capacity = size + that.size;
+		long[] newKeys = new long[capacity];
+		Container[] newContainers = new Container[capacity];
+		int n = 0, i = 0, j = 0;
+		while (i < size || j < that.size) {
+			if (j >= that.size || (i < size && keys[i] < that.keys[j])) {
+				newKeys[n] = keys[i];
+				newContainers[n] = containers[i];
+				i++;
+			} else if (i >= size || keys[i] > that.keys[j]) {
+				newKeys[n] = that.keys[j];
+				newContainers[n] = that.containers[j];
+				j++;
+			} else {
+				newKeys[n] = keys[i];
+				newContainers[n] = Container.or(containers[i], that.containers[j]);
+				i++;
+				j++;
+			}
+			n++;
+		}
+		return new HTMBitmap(level, newKeys, newContainers, n);
+	}
+
+	@Override
+	public void forEachRange(RangeConsumer consumer) {
+		// Runs touching at chunk borders are merged
+		RangeMerger merger = new RangeMerger(consumer);
+		for (int i = 0; i < size; i++) {
+			containers[i].forEachRun(keys[i] << chunkBits, merger);
+		}
+		merger.flush();
+	}
+
+	@Override
+	public HTMRanges toRanges() {
+		final long[][] bounds = { new long[16], new long[16] };
+		final int[] count = { 0 };
+		forEachRange(new RangeConsumer() {
+			@Override
+			public void accept(long lo, long hi) {
+				int n = count[0];
+				if (n == bounds[0].length) {
+					bounds[0] = Arrays.copyOf(bounds[0], n * 2);
+					bounds[1] = Arrays.copyOf(bounds[1], n * 2);
+				}
+				bounds[0][n] = lo;
+				bounds[1][n] = hi;
+				count[0]++;
+			}
+		});
+		return new HTMRanges(level, bounds[0], bounds[1], count[0]);
+	}
+
+	/**
+	 * A key and a reference per chunk, plus the containers
+	 * Shared containers are counted for every chunk.
+	 */
+	@Override
+	public long getSizeInBytes() {
+		long bytes = 16L * size;
+		for (int i = 0; i < size; i++) {
+			bytes += containers[i].sizeInBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Merges ranges which are adjacent before passing them on
+	 */
+	private static class RangeMerger implements RangeConsumer {
+
+		private final RangeConsumer consumer;
+
+		private long lo, hi;
+
+		private boolean pending;
+
+		RangeMerger(RangeConsumer consumer) {
+			this.consumer = consumer;
+			pending = false;
+		}
+
+		@Override
+		public void accept(long nextLo, long nextHi) {
+			if (pending && nextLo == hi + 1) {
+				hi = nextHi;
+				return;
+			}
+			flush();
+			lo = nextLo;
+			hi = nextHi;
+			pending = true;
+		}
+
+		void flush() {
+			if (pending) {
+				consumer.accept(lo, hi);
+				pending = false;
+			}
+		}
+
+	}
+
+	/**
+	 * Adds up getSizeInBytes() of the bitmap that Builder would make
+	 * Spans of full chunks are counted at once.
+	 */
+	private static class SizeEstimator implements RangeConsumer {
+
+		long bytes = 0;
+
+		private long currentKey = -1;
+
+		private int lastEnd, runs = 0, cardinality = 0;
+
+		@Override
+		public void accept(long lo, long hi) {
+			while (lo <= hi) {
+				long key = lo >>> chunkBits;
+				if (key != currentKey) {
+					finish();
+					long fullChunks = ((hi + 1) >>> chunkBits) - key;
+					if ((lo & chunkMask) == 0 && fullChunks > 0) {
+						bytes += fullChunks * (16 + RunContainer.full.sizeInBytes());
+						lo = (key + fullChunks) << chunkBits;
+						continue;
+					}
+					currentKey = key;
+				}
+				long chunkHi = Math.min(hi, (key << chunkBits) | chunkMask);
+				int start = (int) (lo & chunkMask), end = (int) (chunkHi & chunkMask);
+				if (runs == 0 || start != lastEnd + 1) {
+					runs++;
+				}
+				lastEnd = end;
+				cardinality += end - start + 1;
+				lo = chunkHi + 1;
+			}
+		}
+
+		/**
+		 * Close the current chunk, same choice as Container.fromRuns()
+		 */
+		void finish() {
+			if (runs == 0) {
+				return;
+			}
+			long containerBytes = Math.min(4L * runs, BitmapContainer.bytes);
+			if (cardinality <= maxArraySize) {
+				containerBytes = Math.min(containerBytes, 2L * cardinality);
+			}
+			bytes += 16 + 16 + containerBytes;
+			currentKey = -1;
+			runs = 0;
+			cardinality = 0;
+		}
+
+	}
+
+	/**
+	 * Splits ascending ranges into chunks and makes a container of each
+	 */
+	private static class Builder implements RangeConsumer {
+
+		long[] keys = new long[4];
+
+		Container[] containers = new Container[4];
+
+		int size = 0;
+
+		private long currentKey = -1;
+
+		private char[] runStarts = new char[16], runEnds = new char[16];
+
+		private int runs = 0, cardinality = 0;
+
+		@Override
+		public void accept(long lo, long hi) {
+			while (lo <= hi) {
+				long key = lo >>> chunkBits;
+				long chunkHi = Math.min(hi, (key << chunkBits) | chunkMask);
+				if (key != currentKey) {
+					finish();
+					currentKey = key;
+				}
+				addRun((int) (lo & chunkMask), (int) (chunkHi & chunkMask));
+				lo = chunkHi + 1;
+			}
+		}
+
+		private void addRun(int start, int end) {
+			cardinality += end - start + 1;
+			if (runs > 0 && start == runEnds[runs - 1] + 1) {
+				runEnds[runs - 1] = (char) end;
+				return;
+			}
+			if (runs == runStarts.length) {
+				runStarts = Arrays.copyOf(runStarts, runs * 2);
+				runEnds = Arrays.copyOf(runEnds, runs * 2);
+			}
+			runStarts[runs] = (char) start;
+			runEnds[runs] = (char) end;
+			runs++;
+		}
+
+		/**
+		 * Close the current chunk
+		 */
+		void finish() {
+			if (runs == 0) {
+				return;
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				containers = Arrays.copyOf(containers, size * 2);
+			}
+			keys[size] = currentKey;
+			containers[size] = Container.fromRuns(runStarts, runEnds, runs, cardinality);
+			size++;
+			runs = 0;
+			cardinality = 0;
+		}
+
+	}
+
+	/**
+	 * Low 16 bits of HTMids of one chunk, never empty, never modified
+	 */
+	private abstract static class Container {
+
+		abstract int cardinality();
+
+		abstract boolean contains(int low);
+
+		/**
+		 * If all of from to to, inclusive, are in the container
+		 */
+		abstract boolean containsRange(int from, int to);
+
+		/**
+		 * If any of from to to, inclusive, is in the container
+		 */
+		abstract boolean intersectsRange(int from, int to);
+
+		/**
+		 * Pass maximal runs in ascending order
+		 * @param base HTMid of low bits 0
+		 */
+		abstract void forEachRun(long base, RangeConsumer consumer);
+
+		/**
+		 * Set bits of this container in a plain bitmap of 1024 words
+		 */
+		abstract void orInto(long[] words);
+
+		abstract long sizeInBytes();
+
+		/**
+		 * Smallest container of sorted, non-adjacent runs
+		 * Arrays are copied, they may be reused by the caller.
+		 */
+		static Container fromRuns(char[] starts, char[] ends, int runs, int cardinality) {
+			if (cardinality == chunkSize) {
+				return RunContainer.full;
+			}
+			if (4L * runs <= Math.min(2L * cardinality, BitmapContainer.bytes)) {
+				return new RunContainer(Arrays.copyOf(starts, runs), Arrays.copyOf(ends, runs));
+			}
+			if (cardinality <= maxArraySize) {
+				char[] values = new char[cardinality];
+				int n = 0;
+				for (int r = 0; r < runs; r++) {
+					for (int v = starts[r]; v <= ends[r]; v++) {
+						values[n++] = (char) v;
+					}
+				}
+				return new ArrayContainer(values);
+			}
+			long[] words = new long[chunkSize / 64];
+			for (int r = 0; r < runs; r++) {
+				BitmapContainer.setRange(words, starts[r], ends[r]);
+			}
+			return new BitmapContainer(words, cardinality);
+		}
+
+		/**
+		 * Smallest container of a plain bitmap
+		 * @param words taken over, not copied
+		 * @return container, null if empty
+		 */
+		static Container fromWords(long[] words) {
+			int cardinality = 0, runs = 0;
+			long carry = 0;
+			for (long word : words) {
+				cardinality += Long.bitCount(word);
+				// Count bits set whose lower neighbor is clear
+				runs += Long.bitCount(word & ~((word << 1) | carry));
+				carry = word >>> 63;
+			}
+			if (cardinality == 0) {
+				return null;
+			}
+			if (4L * runs <= Math.min(2L * cardinality, BitmapContainer.bytes)) {
+				if (cardinality == chunkSize) {
+					return RunContainer.full;
+				}
+				char[] starts = new char[runs], ends = new char[runs];
+				int n = 0;
+				int start = BitmapContainer.nextSetBit(words, 0);
+				while (start >= 0) {
+					int end = BitmapContainer.nextClearBit(words, start);
+					starts[n] = (char) start;
+					ends[n] = (char) (end - 1);
+					n++;
+					start = end < chunkSize ? BitmapContainer.nextSetBit(words, end) : -1;
+				}
+				return new RunContainer(starts, ends);
+			}
+			if (cardinality <= maxArraySize) {
+				char[] values = new char[cardinality];
+				int n = 0;
+				for (int w = 0; w < words.length; w++) {
+					long word = words[w];
+					while (word != 0) {
+						values[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+						word &= word - 1;
+					}
+				}
+				return new ArrayContainer(values);
+			}
+			return new BitmapContainer(words, cardinality);
+		}
+
+		/**
+		 * @return intersection, null if empty
+		 */
+		static Container and(Container a, Container b) {
+			if (b instanceof ArrayContainer) {
+				Container c = a;
+				a = b;
+				b = c;
+			}
+			if (a instanceof ArrayContainer) {
+				char[] values = ((ArrayContainer) a).values;
+				char[] result = new char[values.length];
+				int n = 0;
+				for (char v : values) {
+					if (b.contains(v)) {
+						result[n++] = v;
+					}
+				}
+				return n == 0 ? null : new ArrayContainer(Arrays.copyOf(result, n));
+			}
+			if (a instanceof RunContainer && b instanceof RunContainer) {
+				return RunContainer.and((RunContainer) a, (RunContainer) b);
+			}
+			long[] words = new long[chunkSize / 64];
+			long[] other = new long[chunkSize / 64];
+			a.orInto(words);
+			b.orInto(other);
+			for (int w = 0; w < words.length; w++) {
+				words[w] &= other[w];
+			}
+			return fromWords(words);
+		}
+
+		/**
+		 * @return union, never empty
+		 */
+		static Container or(Container a, Container b) {
+			if (a == RunContainer.full || b == RunContainer.full) {
+				return RunContainer.full;
+			}
+			if (a instanceof ArrayContainer && b instanceof ArrayContainer
+					&& a.cardinality() + b.cardinality() <= maxArraySize) {
+				return ArrayContainer.or((ArrayContainer) a, (ArrayContainer) b);
+			}
+			if (a instanceof RunContainer && b instanceof RunContainer) {
+				return RunContainer.or((RunContainer) a, (RunContainer) b);
+			}
+			long[] words = new long[chunkSize / 64];
+			a.orInto(words);
+			b.orInto(words);
+			return fromWords(words);
+		}
+
+	}
+
+	/**
+	 * Sorted low bits, for sparse chunks
+	 */
+	private static class ArrayContainer extends Container {
+
+		private final char[] values;
+
+		ArrayContainer(char[] values) {
+			this.values = values;
+		}
+
+		@Override
+		int cardinality() {
+			return values.length;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return Arrays.binarySearch(values, (char) low) >= 0;
+		}
+
+		@Override
+		boolean containsRange(int from, int to) {
+			// Values are distinct, so from and to are both there
+			// with nothing missing only if they are to - from apart
+			int i = Arrays.binarySearch(values, (char) from);
+			return i >= 0 && i + (to - from) < values.length && values[i + (to - from)] == to;
+		}
+
+		@Override
+		boolean intersectsRange(int from, int to) {
+			int i = Arrays.binarySearch(values, (char) from);
+			if (i >= 0) {
+				return true;
+			}
+			i = -i - 1;
+			return i < values.length && values[i] <= to;
+		}
+
+		@Override
+		void forEachRun(long base, RangeConsumer consumer) {
+			int start = 0;
+			for (int i = 1; i <= values.length; i++) {
+				if (i == values.length || values[i] != values[i - 1] + 1) {
+					consumer.accept(base + values[start], base + values[i - 1]);
+					start = i;
+				}
+			}
+		}
+
+		@Override
+		void orInto(long[] words) {
+			for (char v : values) {
+				words[v >>> 6] |= 1L << v;
+			}
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 16 + 2L * values.length;
+		}
+
+		static ArrayContainer or(ArrayContainer a, ArrayContainer b) {
+			char[] result = new char[a.values.length + b.values.length];
+			int n = 0, i = 0, j = 0;
+			while (i < a.values.length || j < b.values.length) {
+				char v;
+				if (j >= b.values.length || (i < a.values.length && a.values[i] < b.values[j])) {
+					v = a.values[i++];
+				} else if (i >= a.values.length || a.values[i] > b.values[j]) {
+					v = b.values[j++];
+				} else {
+					v = a.values[i++];
+					j++;
+				}
+				result[n++] = v;
+			}
+			return new ArrayContainer(n == result.length ? result : Arrays.copyOf(result, n));
+		}
+
+	}
+
+	/**
+	 * Plain bitmap of 2^16 bits, for dense and ragged chunks
+	 */
+	private static class BitmapContainer extends Container {
+
+		static final int bytes = chunkSize / 8;
+
+		private final long[] words;
+
+		private final int cardinality;
+
+		BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(int low) {
+			return (words[low >>> 6] & (1L << low)) != 0;
+		}
+
+		@Override
+		boolean containsRange(int from, int to) {
+			int first = from >>> 6, last = to >>> 6;
+			for (int w = first; w <= last; w++) {
+				long mask = rangeMask(w, first, last, from, to);
+				if ((words[w] & mask) != mask) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		boolean intersectsRange(int from, int to) {
+			int first = from >>> 6, last = to >>> 6;
+			for (int w = first; w <= last; w++) {
+				if ((words[w] & rangeMask(w, first, last, from, to)) != 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Bits of word w which are within from to to
+		 */
+		private static long rangeMask(int w, int first, int last, int from, int to) {
+			long mask = -1L;
+			if (w == first) {
+				mask &= -1L << from;
+			}
+			if (w == last) {
+				mask &= -1L >>> (63 - (to & 63));
+			}
+			return mask;
+		}
+
+		@Override
+		void forEachRun(long base, RangeConsumer consumer) {
+			int start = nextSetBit(words, 0);
+			while (start >= 0) {
+				int end = nextClearBit(words, start);
+				consumer.accept(base + start, base + end - 1);
+				start = end < chunkSize ? nextSetBit(words, end) : -1;
+			}
+		}
+
+		@Override
+		void orInto(long[] words) {
+			for (int w = 0; w < words.length; w++) {
+				words[w] |= this.words[w];
+			}
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 16 + bytes;
+		}
+
+		static void setRange(long[] words, int from, int to) {
+			int first = from >>> 6, last = to >>> 6;
+			for (int w = first; w <= last; w++) {
+				words[w] |= rangeMask(w, first, last, from, to);
+			}
+		}
+
+		/**
+		 * @return index of the first set bit from index on, -1 if none
+		 */
+		static int nextSetBit(long[] words, int index) {
+			int w = index >>> 6;
+			long word = words[w] & (-1L << index);
+			while (word == 0) {
+				if (++w == words.length) {
+					return -1;
+				}
+				word = words[w];
+			}
+			return w * 64 + Long.numberOfTrailingZeros(word);
+		}
+
+		/**
+		 * @return index of the first clear bit from index on, chunkSize if none
+		 */
+		static int nextClearBit(long[] words, int index) {
+			int w = index >>> 6;
+			long word = ~words[w] & (-1L << index);
+			while (word == 0) {
+				if (++w == words.length) {
+					return chunkSize;
+				}
+				word = ~words[w];
+			}
+			return w * 64 + Long.numberOfTrailingZeros(word);
+		}
+
+	}
+
+	/**
+	 * Sorted, non-adjacent runs of low bits, inclusive, for contiguous chunks
+	 */
+	private static class RunContainer extends Container {
+
+		/**
+		 * The whole chunk, shared by all full chunks
+		 */
+		static final RunContainer full = new RunContainer(
+				new char[] { 0 }, new char[] { (char) chunkMask });
+
+		private final char[] starts, ends;
+
+		private final int cardinality;
+
+		RunContainer(char[] starts, char[] ends) {
+			this.starts = starts;
+			this.ends = ends;
+			int sum = 0;
+			for (int r = 0; r < starts.length; r++) {
+				sum += ends[r] - starts[r] + 1;
+			}
+			cardinality = sum;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(int low) {
+			int r = floorRun(low);
+			return r >= 0 && low <= ends[r];
+		}
+
+		@Override
+		boolean containsRange(int from, int to) {
+			int r = floorRun(from);
+			return r >= 0 && to <= ends[r];
+		}
+
+		@Override
+		boolean intersectsRange(int from, int to) {
+			int r = floorRun(to);
+			return r >= 0 && ends[r] >= from;
+		}
+
+		/**
+		 * Index of the last run starting no later than low, -1 if none
+		 */
+		private int floorRun(int low) {
+			int r = Arrays.binarySearch(starts, (char) low);
+			return r >= 0 ? r : -r - 2;
+		}
+
+		@Override
+		void forEachRun(long base, RangeConsumer consumer) {
+			for (int r = 0; r < starts.length; r++) {
+				consumer.accept(base + starts[r], base + ends[r]);
+			}
+		}
+
+		@Override
+		void orInto(long[] words) {
+			for (int r = 0; r < starts.length; r++) {
+				BitmapContainer.setRange(words, starts[r], ends[r]);
+			}
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 16 + 4L * starts.length;
+		}
+
+		static Container and(RunContainer a, RunContainer b) {
+			int capacity = a.starts.length + b.starts.length;
+			char[] starts = new char[capacity], ends = new char[capacity];
+			int n = 0, cardinality = 0, i = 0, j = 0;
+			while (i < a.starts.length && j < b.starts.length) {
+				int start = Math.max(a.starts[i], b.starts[j]);
+				int end = Math.min(a.ends[i], b.ends[j]);
+				if (start <= end) {
+					starts[n] = (char) start;
+					ends[n] = (char) end;
+					cardinality += end - start + 1;
+					n++;
+				}
+				if (a.ends[i] < b.ends[j]) {
+					i++;
+				} else {
+					j++;
+				}
+			}
+			return n == 0 ? null : fromRuns(starts, ends, n, cardinality);
+		}
+
+		static Container or(RunContainer a, RunContainer b) {
+			int capacity = a.starts.length + b.starts.length;
+			char[] starts = new char[capacity], ends = new char[capacity];
+			int n = 0, cardinality = 0, i = 0, j = 0;
+			while (i < a.starts.length || j < b.starts.length) {
+				int start, end;
+				if (j >= b.starts.length || (i < a.starts.length && a.starts[i] <= b.starts[j])) {
+					start = a.starts[i];
+					end = a.ends[i];
+					i++;
+				} else {
+					start = b.starts[j];
+					end = b.ends[j];
+					j++;
+				}
+				if (n > 0 && start <= ends[n - 1] + 1) {
+					if (end > ends[n - 1]) {
+						cardinality += end - ends[n - 1];
+						ends[n - 1] = (char) end;
+					}
+				} else {
+					starts[n] = (char) start;
+					ends[n] = (char) end;
+					cardinality += end - start + 1;
+					n++;
+				}
+			}
+			return fromRuns(starts, ends, n, cardinality);
+		}
+
+	}
+
+}
@@ -0,0 +1,57 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.util.BitSet;
+
+/**
+ * A set of HTMids of the same level, as the result of Trixel covering
+ * Implemented by HTMRanges as sorted ranges and by HTMBitmap as
+ * a compressed bitmap, HTMBitmap.choose() picks the smaller one.
+ */
+public interface HTMRangeSet {
+
+	/**
+	 * Level of HTMids in the set
+	 * @return level
+	 */
+	int getLevel();
+
+	/**
+	 * Judge if the set contains a certain Trixel
+	 * @param hid HTMid in long form, of any level
+	 * @return true if all of the Trixel is in the set
+	 */
+	boolean contains(long hid);
+
+	/**
+	 * Judge if the set contains each of many Trixels
+	 * @param hids HTMids in long form, of any level
+	 * @param out receives a set bit for each contained HTMid, others cleared
+	 */
+	void contains(long[] hids, BitSet out);
+
+	/**
+	 * Judge if the set overlaps a certain Trixel
+	 * @param hid HTMid in long form, of any level
+	 * @return true if any of the Trixel is in the set
+	 */
+	boolean overlaps(long hid);
+
+	/**
+	 * Pass all ranges in ascending order, neither overlapping nor adjacent
+	 * @param consumer
+	 */
+	void forEachRange(RangeConsumer consumer);
+
+	/**
+	 * Same set as ranges
+	 * @return HTMRanges
+	 */
+	HTMRanges toRanges();
+
+	/**
+	 * Approximate memory taken by the set
+	 * @return number of bytes
+	 */
+	long getSizeInBytes();
+
+}
@@ -1,9 +1,19 @@
 package cn.edu.tsinghua.cs.htm.utils;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 import cn.edu.tsinghua.cs.htm.shapes.Trixel;
@@ -14,191 +24,769 @@ import cn.edu.tsinghua.cs.htm.shapes.Trixel;
  * @author Haojia Zuo
  *
  */
-public class HTMRanges {
+public class HTMRanges implements HTMRangeSet {
 	
-	private List<Pair<HTMid, HTMid> > pairList;
+	/**
+	 * Leading int of binary files, "HTMR" in ASCII
+	 */
+	public static final int binaryMagic = 0x48544D52;
+	
+	/**
+	 * Leading int of raw files, "HTMM" in ASCII
+	 */
+	public static final int rawMagic = 0x48544D4D;
+	
+	/**
+	 * Bytes before the first range of raw files, keeps longs aligned
+	 */
+	private static final int rawHeaderSize = 16;
+	
+	/**
+	 * Lower and upper bounds of ranges, inclusive, sorted, neither
+	 * overlapping nor adjacent. Only the first size entries are used.
+	 */
+	private long[] lowerBounds, upperBounds;
+	
+	/**
+	 * Lower and upper bounds of each range in turn, when mapped from a raw file
+	 * Null if bounds are in the arrays.
+	 */
+	private LongBuffer mappedBounds;
+	
+	private int size;
 	
 	/**
 	 * All HTMids will be at this same level
 	 */
 	private int level;
 	
-	{
-		pairList = new ArrayList<Pair<HTMid, HTMid> >();
-	}
-	
 	public HTMRanges(int level) {
 		this.level = level;
+		lowerBounds = new long[0];
+		upperBounds = new long[0];
+		size = 0;
 	}
 	
 	public HTMRanges(List<Pair<HTMid, HTMid> > pairList) {
-		if (pairList != null) {
-			this.pairList.addAll(pairList);
-			sort();
-			compact();
-			level = this.pairList.get(0).a.getLevel();
+		this(0);
+		if (pairList != null && !pairList.isEmpty()) {
+			long[] starts = new long[pairList.size()];
+			long[] ends = new long[pairList.size()];
+			int n = 0;
+			for (Pair<HTMid, HTMid> pair : pairList) {
+				starts[n] = pair.a.getId();
+				ends[n] = pair.b.getId();
+				n++;
+			}
+			level = pairList.get(0).a.getLevel();
+			merge(starts, ends, n);
 		}
 	}
 	
+	/**
+	 * @param trixelList Trixels of any levels, deeper ones are truncated
+	 * @param level level of HTMids in ranges, 0 to HTMid.maxLevel
+	 */
 	public HTMRanges(List<Trixel> trixelList, int level) {
-		this.level = level;
+		this(level);
+		checkLevel(level);
 		if (trixelList != null) {
+			long[] starts = new long[trixelList.size()];
+			long[] ends = new long[trixelList.size()];
+			int n = 0;
 			for (Trixel trixel : trixelList) {
-				HTMid htmId = trixel.getHTMid();
-				Pair<HTMid, HTMid> range = htmId.extend(this.level);
-				pairList.add(range);
+				long hid = trixel.getHTMid().getId();
+				starts[n] = HTMid.extendLower(hid, level);
+				ends[n] = HTMid.extendUpper(hid, level);
+				n++;
 			}
-			sort();
-			compact();
+			merge(starts, ends, n);
 		}
 	}
 	
+	/**
+	 * @param level
+	 * @throws IllegalArgumentException if HTMids of level don't fit in 62 bits
+	 */
+	static void checkLevel(int level) {
+		if (level < 0 || level > HTMid.maxLevel) {
+			throw new IllegalArgumentException("Level out of range: " + level);
+		}
+	}
+	
+	/**
+	 * Ranges already sorted and compacted
+	 */
+	HTMRanges(int level, long[] lowerBounds, long[] upperBounds, int size) {
+		this.level = level;
+		this.lowerBounds = lowerBounds;
+		this.upperBounds = upperBounds;
+		this.size = size;
+	}
+	
+	/**
+	 * Ranges read from a mapping, already sorted and compacted
+	 */
+	private HTMRanges(int level, LongBuffer mappedBounds, int size) {
+		this.level = level;
+		this.mappedBounds = mappedBounds;
+		this.size = size;
+	}
+	
+	/**
+	 * Take the union of arbitrary ranges as the content
+	 * Starts and ends are sorted separately, then a single sweep
+	 * merges ranges that are overlapping or adjacent: the k-th smallest
+	 * end closes a merged range unless the next start is within it.
+	 * @param starts lower bounds, sorted in place
+	 * @param ends upper bounds, sorted in place
+	 * @param n number of ranges
+	 */
+	private void merge(long[] starts, long[] ends, int n) {
+		Arrays.sort(starts, 0, n);
+		Arrays.sort(ends, 0, n);
+		int count = 0;
+		for (int k = 0; k < n; k++) {
+			long lowerBound = starts[k];
+			while (k + 1 < n && starts[k + 1] <= ends[k] + 1) {
+				k++;
+			}
+			// Reuse the arrays, count never passes k
+			starts[count] = lowerBound;
+			ends[count] = ends[k];
+			count++;
+		}
+		lowerBounds = starts;
+		upperBounds = ends;
+		size = count;
+	}
+	
 	public static HTMRanges fromFile(String filename) throws IOException {
 		File file = new File(filename);
 		BufferedReader br = new BufferedReader(new FileReader(file));
 		
-		List<Pair<HTMid, HTMid> > pairList = new ArrayList<Pair<HTMid, HTMid> >();
+		long[] starts = new long[16];
+		long[] ends = new long[16];
+		int n = 0;
 		
 		String line = "";
 		while ((line = br.readLine()) != null) {
 			String[] lbhb = line.split(",");
-			lbhb[0] = lbhb[0].trim();
-			lbhb[1] = lbhb[1].trim();
+			if (n == starts.length) {
+				starts = Arrays.copyOf(starts, n * 2);
+				ends = Arrays.copyOf(ends, n * 2);
+			}
+			starts[n] = parseId(lbhb[0].trim());
+			ends[n] = parseId(lbhb[1].trim());
+			n++;
+		}
+		
+		br.close();
+		HTMRanges ranges = new HTMRanges(0);
+		if (n > 0) {
+			ranges.level = HTMid.getLevel(starts[0]);
+			ranges.merge(starts, ends, n);
+		}
+		return ranges;
+	}
+	
+	private static long parseId(String str) {
+		if (str.charAt(0) != 'N' && str.charAt(0) != 'S') {
+			return Long.parseLong(str);
+		} else {
+			return HTMid.nameToId(str);
+		}
+	}
+	
+	/**
+	 * Read ranges written by toBinaryFile() or BinaryWriter
+	 * @param filename
+	 * @return HTMRanges
+	 * @throws IOException if not a binary ranges file or truncated
+	 */
+	public static HTMRanges fromBinaryFile(String filename) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+			if (fileSize > Integer.MAX_VALUE) {
+				throw new IOException("Binary HTMRanges file too large to map: " + filename);
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.remaining() < 12 || buffer.getInt() != binaryMagic) {
+				throw new IOException("Not a binary HTMRanges file: " + filename);
+			}
+			int level = buffer.getInt();
+			int count = buffer.getInt();
+			// Each range takes at least two bytes
+			if (count < 0 || count > buffer.remaining() / 2) {
+				throw new IOException("Truncated binary HTMRanges file: " + filename);
+			}
 			
-			HTMid lb, hb;
-			if (lbhb[0].charAt(0) != 'N' && lbhb[0].charAt(0) != 'S') {
-				lb = new HTMid(Long.parseLong(lbhb[0]));
-			} else {
-				lb = new HTMid(lbhb[0]);
+			// Ranges are stored sorted and compacted, no need to redo it
+			long[] lowerBounds = new long[count];
+			long[] upperBounds = new long[count];
+			long hi = 0;
+			try {
+				for (int i = 0; i < count; i++) {
+					long lo = hi + readVarLong(buffer);
+					hi = lo + readVarLong(buffer);
+					lowerBounds[i] = lo;
+					upperBounds[i] = hi;
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated binary HTMRanges file: " + filename);
 			}
-			if (lbhb[1].charAt(0) != 'N' && lbhb[1].charAt(0) != 'S') {
-				hb = new HTMid(Long.parseLong(lbhb[1]));
-			} else {
-				hb = new HTMid(lbhb[1]);
+			return new HTMRanges(level, lowerBounds, upperBounds, count);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Write ranges in binary form
+	 * Little-endian header of magic, level and count,
+	 * followed by lo minus previous hi and hi minus lo of each range,
+	 * each as an unsigned LEB128 varint.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void toBinaryFile(String filename) throws IOException {
+		BinaryWriter writer = new BinaryWriter(filename, level);
+		try {
+			for (int i = 0; i < size; i++) {
+				writer.write(lower(i), upper(i));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+	
+	private static void writeVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+	
+	/**
+	 * Map ranges written by toRawFile() or RawWriter, without reading them
+	 * Lookups binary-search the mapping, pages are loaded on demand
+	 * and shared with other processes mapping the same file.
+	 * Ranges are trusted to be sorted and compacted, they are not checked.
+	 * @param filename
+	 * @return read-only HTMRanges
+	 * @throws IOException if not a raw ranges file
+	 */
+	public static HTMRanges map(String filename) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+			if (fileSize > Integer.MAX_VALUE) {
+				throw new IOException("Raw HTMRanges file too large to map: " + filename);
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if (fileSize < rawHeaderSize || buffer.getInt(0) != rawMagic) {
+				throw new IOException("Not a raw HTMRanges file: " + filename);
+			}
+			int level = buffer.getInt(4);
+			long count = buffer.getLong(8);
+			if (count < 0 || count > (fileSize - rawHeaderSize) / 16) {
+				throw new IOException("Truncated raw HTMRanges file: " + filename);
+			}
+			buffer.position(rawHeaderSize);
+			// The mapping stays valid after the channel is closed
+			LongBuffer bounds = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			return new HTMRanges(level, bounds, (int) count);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Write ranges in raw form, to be opened by map()
+	 * Little-endian header of magic, level and count as a long,
+	 * followed by lo and hi of each range as longs.
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void toRawFile(String filename) throws IOException {
+		RawWriter writer = new RawWriter(filename, level);
+		try {
+			for (int i = 0; i < size; i++) {
+				writer.write(lower(i), upper(i));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Streams ranges to a binary file as they arrive
+	 * Ranges must come sorted and not overlapping, as from Cover.runDepthFirst().
+	 * The count in the header is filled in on close().
+	 */
+	public static class BinaryWriter implements RangeConsumer, Closeable {
+		
+		private final FileChannel channel;
+		
+		private final ByteBuffer buffer;
+		
+		private long previousHi;
+		
+		private int count;
+		
+		public BinaryWriter(String filename, int level) throws IOException {
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(binaryMagic).putInt(level).putInt(0);
+			previousHi = 0;
+			count = 0;
+		}
+		
+		/**
+		 * Append a range
+		 * @param lo lower bound, greater than the previous upper bound
+		 * @param hi upper bound
+		 * @throws IOException
+		 */
+		public void write(long lo, long hi) throws IOException {
+			if (lo <= previousHi || hi < lo) {
+				throw new IllegalArgumentException("Ranges out of order: " + lo + ", " + hi);
+			}
+			if (buffer.remaining() < 20) {
+				drain();
+			}
+			writeVarLong(buffer, lo - previousHi);
+			writeVarLong(buffer, hi - lo);
+			previousHi = hi;
+			count++;
+		}
+		
+		@Override
+		public void accept(long lo, long hi) {
+			try {
+				write(lo, hi);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+		
+		/**
+		 * Flush, fill in the count and close the file
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				drain();
+				buffer.putInt(count).flip();
+				channel.write(buffer, 8);
+				buffer.clear();
+			} finally {
+				channel.close();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Streams ranges to a raw file as they arrive
+	 * Ranges must come sorted and not overlapping, as from Cover.runDepthFirst().
+	 * The count in the header is filled in on close().
+	 */
+	public static class RawWriter implements RangeConsumer, Closeable {
+		
+		private final FileChannel channel;
+		
+		private final ByteBuffer buffer;
+		
+		private long previousHi;
+		
+		private long count;
+		
+		public RawWriter(String filename, int level) throws IOException {
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(rawMagic).putInt(level).putLong(0);
+			previousHi = 0;
+			count = 0;
+		}
+		
+		/**
+		 * Append a range
+		 * @param lo lower bound, greater than the previous upper bound
+		 * @param hi upper bound
+		 * @throws IOException
+		 */
+		public void write(long lo, long hi) throws IOException {
+			if (lo <= previousHi || hi < lo) {
+				throw new IllegalArgumentException("Ranges out of order: " + lo + ", " + hi);
+			}
+			if (buffer.remaining() < 16) {
+				drain();
+			}
+			buffer.putLong(lo).putLong(hi);
+			previousHi = hi;
+			count++;
+		}
+		
+		@Override
+		public void accept(long lo, long hi) {
+			try {
+				write(lo, hi);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		private void drain() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+		
+		/**
+		 * Flush, fill in the count and close the file
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				drain();
+				buffer.putLong(count).flip();
+				channel.write(buffer, 8);
+				buffer.clear();
+			} finally {
+				channel.close();
 			}
-			pairList.add(new Pair<HTMid, HTMid>(lb, hb));
 		}
 		
-		br.close();
-		return new HTMRanges(pairList);
 	}
 	
 	public List<Pair<HTMid, HTMid> > getPairList() {
-		List<Pair<HTMid, HTMid> > duplicate = new ArrayList<Pair<HTMid, HTMid> >();
-		duplicate.addAll(pairList);
+		List<Pair<HTMid, HTMid> > duplicate = new ArrayList<Pair<HTMid, HTMid> >(size);
+		for (int i = 0; i < size; i++) {
+			duplicate.add(new Pair<HTMid, HTMid>(
+					new HTMid(lower(i)), new HTMid(upper(i))));
+		}
 		return duplicate;
 	}
 	
+	/**
+	 * Number of ranges
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public int getLevel() {
+		return level;
+	}
+	
+	@Override
+	public void forEachRange(RangeConsumer consumer) {
+		for (int i = 0; i < size; i++) {
+			consumer.accept(lower(i), upper(i));
+		}
+	}
+	
+	@Override
+	public HTMRanges toRanges() {
+		return this;
+	}
+	
+	/**
+	 * Two longs per range, whether in arrays or mapped
+	 */
+	@Override
+	public long getSizeInBytes() {
+		return 16L * size;
+	}
+	
+	/**
+	 * Lower bound of a range
+	 * @param i index of range, ranges are in ascending order
+	 * @return HTMid in long form
+	 */
+	public long getLowerBound(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+		return lower(i);
+	}
+	
+	/**
+	 * Upper bound of a range, inclusive
+	 * @param i index of range, ranges are in ascending order
+	 * @return HTMid in long form
+	 */
+	public long getUpperBound(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+		return upper(i);
+	}
+	
 	/**
 	 * Judge if Trixels represented by HTMRanges contain a certain Trixel  
 	 * @param htmId HTMid of the Trixel to judge
 	 * @return
 	 */
 	public boolean contains(HTMid htmId) {
-		int thatLevel = htmId.getLevel();
-		long hid = htmId.getId();
+		return contains(htmId.getId());
+	}
+	
+	/**
+	 * Judge if Trixels represented by HTMRanges contain a certain Trixel
+	 * @param hid HTMid in long form, of any level
+	 * @return true if contained
+	 */
+	@Override
+	public boolean contains(long hid) {
+		int thatLevel = HTMid.getLevel(hid);
+		if (thatLevel < 0) {
+			return false;
+		}
 		if (level <= thatLevel) {
-			for (Pair<HTMid, HTMid> pair : pairList) {
-				long lb = pair.a.extend(thatLevel).a.getId();
-				long hb = pair.b.extend(thatLevel).b.getId();
-				if (lb <= hid && hid <= hb) {
-					return true;
-				}
-			}
-		} else if (level > thatLevel) {
-			Pair<HTMid, HTMid> thatPair = htmId.extend(level);
-			for (Pair<HTMid, HTMid> pair : pairList) {
-				long lb = pair.a.getId();
-				long hb = pair.b.getId();
-				long thatLb = thatPair.a.getId();
-				long thatHb = thatPair.b.getId();
-				if (lb <= thatLb && thatHb <= hb) {
-					return true;
-				}
+			return containsId(hid >> 2 * (thatLevel - level));
+		}
+		int shiftBits = 2 * (level - thatLevel);
+		long lo = hid << shiftBits;
+		long hi = lo + ((1L << shiftBits) - 1);
+		int i = floorIndex(lo);
+		return i >= 0 && hi <= upper(i);
+	}
+	
+	/**
+	 * Judge if Trixels represented by HTMRanges contain each of many Trixels
+	 * Each HTMid is looked up by binary search
+	 * @param hids HTMids in long form, of any level
+	 * @param out receives a set bit for each contained HTMid, others cleared
+	 */
+	@Override
+	public void contains(long[] hids, BitSet out) {
+		out.clear(0, hids.length);
+		for (int i = 0; i < hids.length; i++) {
+			if (contains(hids[i])) {
+				out.set(i);
 			}
 		}
-		return false;
 	}
-
+	
 	public boolean overlaps(HTMid htmId) {
-        int thatLevel = htmId.getLevel();
-        long hid = htmId.getId();
-        if (level <= thatLevel) {
-            for (Pair<HTMid, HTMid> pair : pairList) {
-                long lb = pair.a.extend(thatLevel).a.getId();
-                long hb = pair.b.extend(thatLevel).b.getId();
-                if (lb <= hid && hid <= hb) {
-                    return true;
-                }
-            }
-        } else if (level > thatLevel){
-            Pair<HTMid, HTMid> thatPair = htmId.extend(level);
-            for (Pair<HTMid, HTMid> pair : pairList) {
-                long lb = pair.a.getId();
-                long hb = pair.b.getId();
-                long thatLb = thatPair.a.getId();
-                long thatHb = thatPair.b.getId();
-                if (thatLb >= lb && thatLb <= hb ||
-                        thatHb >= lb && thatHb <= hb ||
-                        lb >= thatLb && lb <= thatHb ||
-                        hb >= thatLb && hb <= thatHb) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-	
-	/**
-	 * Sort the pairs under these rules:
-	 * 1. Sort in ascending order of lower bounds
-	 * 2. If having same lower bounds, sort in ascending order of upper bounds
-	 */
-	private void sort() {
-		Collections.sort(pairList, new Comparator<Pair<HTMid, HTMid> >() {
-			@Override
-			public int compare(Pair<HTMid, HTMid> o1, Pair<HTMid, HTMid> o2) {
-				int cmp = o1.a.compareTo(o2.a);
-				if (cmp != 0) {
-					return cmp;
-				}
-				return o1.b.compareTo(o2.b);
+		return overlaps(htmId.getId());
+	}
+	
+	/**
+	 * Judge if Trixels represented by HTMRanges overlap a certain Trixel
+	 * @param hid HTMid in long form, of any level
+	 * @return true if overlapping
+	 */
+	@Override
+	public boolean overlaps(long hid) {
+		int thatLevel = HTMid.getLevel(hid);
+		if (thatLevel < 0) {
+			return false;
+		}
+		if (level <= thatLevel) {
+			return containsId(hid >> 2 * (thatLevel - level));
+		}
+		int shiftBits = 2 * (level - thatLevel);
+		long lo = hid << shiftBits;
+		long hi = lo + ((1L << shiftBits) - 1);
+		int i = floorIndex(hi);
+		return i >= 0 && upper(i) >= lo;
+	}
+	
+	/**
+	 * Union of two HTMRanges, in one sweep over both
+	 * If levels differ, the result is at the finer level.
+	 * @param that
+	 * @return new HTMRanges
+	 */
+	public HTMRanges union(HTMRanges that) {
+		int newLevel = Math.max(level, that.level);
+		int shiftA = 2 * (newLevel - level), shiftB = 2 * (newLevel - that.level);
+		long[] lows = new long[size + that.size];
+		long[] highs = new long[size + that.size];
+		int n = 0, i = 0, j = 0;
+		while (i < size || j < that.size) {
+			long lo, hi;
+			// Take the range with smaller lower bound first
+			if (j >= that.size || (i < size
+					&& extendLower(lower(i), shiftA) <= extendLower(that.lower(j), shiftB))) {
+				lo = extendLower(lower(i), shiftA);
+				hi = extendUpper(upper(i), shiftA);
+				i++;
+			} else {
+				lo = extendLower(that.lower(j), shiftB);
+				hi = extendUpper(that.upper(j), shiftB);
+				j++;
 			}
-		});
+			if (n > 0 && lo <= highs[n - 1] + 1) {
+				highs[n - 1] = Math.max(highs[n - 1], hi);
+			} else {
+				lows[n] = lo;
+				highs[n] = hi;
+				n++;
+			}
+		}
+		return new HTMRanges(newLevel, lows, highs, n);
 	}
 	
 	/**
-	 * Rearrange the pair list
-	 * Merge pairs who are overlapping or adjacent with each other
-	 * Must be called after sort
+	 * Intersection of two HTMRanges, in one sweep over both
+	 * If levels differ, the result is at the finer level.
+	 * @param that
+	 * @return new HTMRanges
 	 */
-	private void compact() {
-		List<Pair<HTMid, HTMid> > newList = new ArrayList<Pair<HTMid, HTMid> >();
-		Iterator<Pair<HTMid, HTMid> > iter = pairList.iterator();
-		if (!iter.hasNext()) {
-			return;
+	public HTMRanges intersect(HTMRanges that) {
+		int newLevel = Math.max(level, that.level);
+		int shiftA = 2 * (newLevel - level), shiftB = 2 * (newLevel - that.level);
+		int capacity = Math.max(size + that.size - 1, 0);
+		long[] lows = new long[capacity];
+		long[] highs = new long[capacity];
+		int n = 0, i = 0, j = 0;
+		while (i < size && j < that.size) {
+			long hiA = extendUpper(upper(i), shiftA);
+			long hiB = extendUpper(that.upper(j), shiftB);
+			long lo = Math.max(extendLower(lower(i), shiftA),
+					extendLower(that.lower(j), shiftB));
+			long hi = Math.min(hiA, hiB);
+			if (lo <= hi) {
+				lows[n] = lo;
+				highs[n] = hi;
+				n++;
+			}
+			// The range ending first can't meet any other
+			if (hiA < hiB) {
+				i++;
+			} else {
+				j++;
+			}
 		}
-		Pair<HTMid, HTMid> first = iter.next();
-		long lowerBound = first.a.hid;
-		long higherBound = first.b.hid;
-		while (iter.hasNext()) {
-			Pair<HTMid, HTMid> now = iter.next();
-			if (higherBound >= now.a.hid - 1) {
-				higherBound = now.b.hid;
+		return new HTMRanges(newLevel, lows, highs, n);
+	}
+	
+	/**
+	 * Difference of two HTMRanges, in one sweep over both
+	 * If levels differ, the result is at the finer level.
+	 * @param that ranges to remove
+	 * @return new HTMRanges
+	 */
+	public HTMRanges subtract(HTMRanges that) {
+		int newLevel = Math.max(level, that.level);
+		int shiftA = 2 * (newLevel - level), shiftB = 2 * (newLevel - that.level);
+		long[] lows = new long[size + that.size];
+		long[] highs = new long[size + that.size];
+		int n = 0, j = 0;
+		for (int i = 0; i < size; i++) {
+			long lo = extendLower(lower(i), shiftA);
+			long hi = extendUpper(upper(i), shiftA);
+			// Skip ranges to remove which end before this one
+			while (j < that.size && extendUpper(that.upper(j), shiftB) < lo) {
+				j++;
+			}
+			// Cut out every range to remove which starts within this one
+			while (lo <= hi && j < that.size) {
+				long cutLo = extendLower(that.lower(j), shiftB);
+				if (cutLo > hi) {
+					break;
+				}
+				long cutHi = extendUpper(that.upper(j), shiftB);
+				if (cutLo > lo) {
+					lows[n] = lo;
+					highs[n] = cutLo - 1;
+					n++;
+				}
+				lo = cutHi + 1;
+				if (cutHi > hi) {
+					// May cut the next range as well
+					break;
+				}
+				j++;
+			}
+			if (lo <= hi) {
+				lows[n] = lo;
+				highs[n] = hi;
+				n++;
+			}
+		}
+		return new HTMRanges(newLevel, lows, highs, n);
+	}
+	
+	/**
+	 * Lower bound of the range of descendants, same as HTMid.extend()
+	 */
+	private static long extendLower(long hid, int shiftBits) {
+		return hid << shiftBits;
+	}
+	
+	/**
+	 * Upper bound of the range of descendants, same as HTMid.extend()
+	 */
+	private static long extendUpper(long hid, int shiftBits) {
+		return ((hid + 1) << shiftBits) - 1;
+	}
+	
+	/**
+	 * If an HTMid of this level is in a range
+	 */
+	private boolean containsId(long hid) {
+		int i = floorIndex(hid);
+		return i >= 0 && hid <= upper(i);
+	}
+	
+	/**
+	 * Index of the last range whose lower bound is no more than hid
+	 * @return index, -1 if none
+	 */
+	private int floorIndex(long hid) {
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (lower(mid) <= hid) {
+				low = mid + 1;
 			} else {
-				Pair<HTMid, HTMid> newPair = new Pair<HTMid, HTMid>(
-						new HTMid(lowerBound),
-						new HTMid(higherBound));
-				newList.add(newPair);
-				lowerBound = now.a.hid;
-				higherBound = now.b.hid;
-			}
-		}
-		Pair<HTMid, HTMid> newPair = new Pair<HTMid, HTMid>(
-				new HTMid(lowerBound),
-				new HTMid(higherBound));
-		newList.add(newPair);
-		pairList = newList;
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+	
+	private long lower(int i) {
+		return mappedBounds == null ? lowerBounds[i] : mappedBounds.get(2 * i);
+	}
+	
+	private long upper(int i) {
+		return mappedBounds == null ? upperBounds[i] : mappedBounds.get(2 * i + 1);
 	}
 
 }
@@ -22,16 +22,22 @@ public class HTMid implements Comparable<HTMid> {
 	
 	/**
 	 * String representation, e.g. S01
+	 * Computed on first use, most HTMids are only used as longs
 	 */
 	protected String hidName;
 	
-	private static final int hidBitsMaxLen = 64;
-	private static final long hidHighestBit = 0x2L << 60;
-	private static final long hidSecondHighestBit = 0x1L << 60;
+	/**
+	 * Longest name, of level 29, the deepest fitting in 62 bits
+	 */
+	public static final int maxNameLength = 31;
+	
+	/**
+	 * Deepest level, HTMids of deeper levels don't fit in 62 bits
+	 */
+	public static final int maxLevel = 29;
 	
 	public HTMid(long hid) {
 		this.hid = hid;
-		this.hidName = idToName(hid);
 	}
 	
 	public HTMid(String hidName) {
@@ -46,41 +52,12 @@ public class HTMid implements Comparable<HTMid> {
 	 * @return string form of HTMid
 	 */
 	public static String idToName(long hid) {
-		long shiftedBit, shiftedHid;
-		
-		if (hid < 0 || hid < 8) {
+		char[] name = new char[maxNameLength];
+		int length = formatName(hid, name, 0);
+		if (length < 0) {
 			return null;
 		}
-		
-		int i;
-		for (i = 2; i < hidBitsMaxLen; i += 2) {
-			shiftedHid = hid << (i - 2);
-			shiftedBit = shiftedHid & hidHighestBit;
-			if (shiftedBit != 0) {
-				break;
-			}
-			if ((shiftedHid & hidSecondHighestBit) != 0) {
-				return null;
-			}
-		}
-		
-		int size = (hidBitsMaxLen - i) / 2;
-		
-		char[] name = new char[size];
-		
-		for (i = 0; i < size - 1; i++) {
-			char ch = (char) ('0' + (int) ((hid >> (i * 2)) & 3));
-			name[size - i - 1] = ch;
-		}
-		
-		shiftedBit = (hid >> (size * 2 - 2)) & 1;
-		if (shiftedBit != 0) {
-			name[0] = 'N';
-		} else {
-			name[0] = 'S';
-		}
-		
-		return String.valueOf(name);
+		return new String(name, 0, length);
 	}
 	
 	/**
@@ -90,83 +67,165 @@ public class HTMid implements Comparable<HTMid> {
 	 * @return HTMid in long type
 	 */
 	public static long nameToId(String hidName) {
-		long resultHid = 0;
-		long shifted;
-		long bits;
-		int shift;
-		
-		if (hidName.length() < 2) {
-			return 0;
+		return parseName(hidName, 0, hidName.length());
+	}
+	
+	/**
+	 * Write string form of HTMid into a buffer, without allocating
+	 * @param hid long form of HTMid
+	 * @param buffer with room for level + 2 chars, at most maxNameLength
+	 * @param offset where to start writing
+	 * @return number of chars written, -1 if illegal
+	 */
+	public static int formatName(long hid, char[] buffer, int offset) {
+		if (!isValid(hid)) {
+			return -1;
+		}
+		int length = getLevel(hid) + 2;
+		for (int i = length - 1; i > 0; i--) {
+			buffer[offset + i] = (char) ('0' + (int) (hid & 3));
+			hid >>= 2;
 		}
-		if (hidName.length() > (hidBitsMaxLen - 2) * 2) {
+		buffer[offset] = (hid & 1) != 0 ? 'N' : 'S';
+		return length;
+	}
+	
+	/**
+	 * Convert string form of HTMid to long int form, without allocating
+	 * @param name holding string form of HTMid, e.g. a line being parsed
+	 * @param start index of the first char
+	 * @param end index after the last char
+	 * @return HTMid in long type, 0 if illegal
+	 */
+	public static long parseName(CharSequence name, int start, int end) {
+		int length = end - start;
+		if (length < 2 || length > maxNameLength) {
 			return 0;
 		}
-		if (hidName.charAt(0) != 'N' && hidName.charAt(0) != 'S') {
+		long resultHid;
+		char ch = name.charAt(start);
+		if (ch == 'N') {
+			resultHid = 3;
+		} else if (ch == 'S') {
+			resultHid = 2;
+		} else {
 			return 0;
 		}
-		for (int i = hidName.length() - 1; i > 0; i--) {
-			if (hidName.charAt(i) > '3' || hidName.charAt(i) < '0') {
+		for (int i = start + 1; i < end; i++) {
+			ch = name.charAt(i);
+			if (ch > '3' || ch < '0') {
 				return 0;
 			}
-			bits = (int) (hidName.charAt(i) - '0');
-			shift = 2 * (hidName.length() - i - 1);
-			shifted = bits << shift;
-			resultHid += shifted;
+			resultHid = (resultHid << 2) | (ch - '0');
 		}
-		bits = 2;
-		if (hidName.charAt(0) == 'N') {
-			bits++;
-		}
-		shift = 2 * hidName.length() - 2;
-		shifted = bits << shift;
-		resultHid += shifted;
 		return resultHid;
 	}
 	
-	public int getLevel() {
+	/**
+	 * Judge if a long is an HTMid
+	 * Its highest set bit must start a pair of bits, and be 1 pair or more
+	 * above those of the initial Trixels.
+	 * @param hid
+	 * @return true if legal
+	 */
+	public static boolean isValid(long hid) {
+		return hid >= 8 && hid < (1L << 62) && (Long.numberOfLeadingZeros(hid) & 1) == 0;
+	}
+	
+	/**
+	 * Level of an HTMid in long form, found from its highest bit
+	 * @param hid
+	 * @return level, negative if illegal
+	 */
+	public static int getLevel(long hid) {
 		if (hid < 0) {
 			return -1;
 		}
-		int i;
-		for (i = 2; i < hidBitsMaxLen; i += 2) {
-			if (((hid << (i - 2)) & hidHighestBit) != 0) {
-				break;
-			}
+		return (64 - Long.numberOfLeadingZeros(hid)) / 2 - 2;
+	}
+	
+	/**
+	 * @param hid
+	 * @param childNum 0 to 3
+	 * @return HTMid of the child in long form
+	 */
+	public static long getChild(long hid, int childNum) {
+		return (hid << 2) | childNum;
+	}
+	
+	/**
+	 * @param hid of level 1 or deeper
+	 * @return HTMid of the parent in long form
+	 */
+	public static long getParent(long hid) {
+		return hid >> 2;
+	}
+	
+	/**
+	 * Ancestor at a certain level, or hid itself if not deeper than level
+	 * @param hid
+	 * @param level
+	 * @return HTMid in long form
+	 */
+	public static long truncate(long hid, int level) {
+		int currentLevel = getLevel(hid);
+		if (level < currentLevel) {
+			return hid >> 2 * (currentLevel - level);
+		}
+		return hid;
+	}
+	
+	/**
+	 * Lower bound of extend(level), without allocating
+	 * @param hid
+	 * @param level
+	 * @return HTMid in long form
+	 */
+	public static long extendLower(long hid, int level) {
+		int currentLevel = getLevel(hid);
+		if (currentLevel < level) {
+			return hid << 2 * (level - currentLevel);
 		}
-		return (hidBitsMaxLen - i) / 2 - 2;
+		return hid >> 2 * (currentLevel - level);
+	}
+	
+	/**
+	 * Upper bound of extend(level), without allocating
+	 * @param hid
+	 * @param level
+	 * @return HTMid in long form
+	 */
+	public static long extendUpper(long hid, int level) {
+		int currentLevel = getLevel(hid);
+		if (currentLevel < level) {
+			return ((hid + 1) << 2 * (level - currentLevel)) - 1;
+		}
+		return hid >> 2 * (currentLevel - level);
+	}
+	
+	public int getLevel() {
+		return getLevel(hid);
 	}
 	
 	public HTMid getChild(int childNum) {
 		if (childNum >= 0 && childNum <= 3) {
-			return new HTMid(hid * 4 + childNum);
+			return new HTMid(getChild(hid, childNum));
 		} else {
 			return this;
 		}
 	}
 	
 	public HTMid truncate(int level) {
-		int currentLevel = getLevel();
-		if (level < currentLevel) {
-			return new HTMid(hid >> 2 * (currentLevel - level));
+		if (level < getLevel()) {
+			return new HTMid(truncate(hid, level));
 		} else {
 			return this;
 		}
 	}
 	
 	public Pair<HTMid, HTMid> extend(int level) {
-		int currentLevel = getLevel();
-		long lo, hi;
-		if (currentLevel < level) {
-			int shiftBits = 2 * (level - currentLevel);
-			lo = hid << shiftBits;
-			hi = lo + ((1L << shiftBits) - 1);
-		} else {
-			// truncate
-			int shiftBits = 2 * (currentLevel - level);
-			lo = hid >> shiftBits;
-			hi = lo;
-		}
-		return new Pair<HTMid, HTMid>(new HTMid(lo), new HTMid(hi));
+		return new Pair<HTMid, HTMid>(new HTMid(extendLower(hid, level)),
+				new HTMid(extendUpper(hid, level)));
 	}
 	
 	public long getId() {
@@ -174,12 +233,16 @@ public class HTMid implements Comparable<HTMid> {
 	}
 	
 	public String getName() {
+		// Racy but safe, every thread computes the same String
+		if (hidName == null) {
+			hidName = idToName(hid);
+		}
 		return hidName;
 	}
 	
 	@Override
 	public String toString() {
-		return hidName;
+		return getName();
 	}
 
 	@Override
@@ -0,0 +1,171 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+
+/**
+ * A normalized set of HTMids of mixed levels
+ * Each Trixel is kept at its own level. No HTMid is a descendant of another,
+ * and no 4 siblings are all present, they are replaced by their parent.
+ * HTMids are in the order of the areas they cover, i.e. of their ranges
+ * at any level, so converting to ranges takes a single sweep.
+ */
+public class HTMidSet {
+
+	private long[] ids;
+
+	private int size;
+
+	/**
+	 * @param hids HTMids in long form, of any levels, in any order
+	 */
+	public HTMidSet(long[] hids) {
+		normalize(Arrays.copyOf(hids, hids.length), hids.length);
+	}
+
+	/**
+	 * @param trixelList Trixels of any levels, in any order
+	 */
+	public HTMidSet(List<Trixel> trixelList) {
+		long[] hids = new long[trixelList.size()];
+		int n = 0;
+		for (Trixel trixel : trixelList) {
+			hids[n++] = trixel.getHTMid().getId();
+		}
+		normalize(hids, n);
+	}
+
+	/**
+	 * Fewest HTMids covering the same area as ranges
+	 * @param ranges
+	 */
+	public HTMidSet(HTMRanges ranges) {
+		ids = new long[0];
+		size = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			split(ranges.getLowerBound(i), ranges.getUpperBound(i), ranges.getLevel());
+		}
+	}
+
+	/**
+	 * Merge the ranges of all HTMids at the deepest level among them,
+	 * then split the merged ranges back into the largest Trixels
+	 * @param hids HTMids, reused for the lower bounds
+	 * @param n number of HTMids
+	 */
+	private void normalize(long[] hids, int n) {
+		int deepest = 0;
+		for (int i = 0; i < n; i++) {
+			int level = HTMid.getLevel(hids[i]);
+			if (level < 0) {
+				throw new IllegalArgumentException("Illegal HTMid: " + hids[i]);
+			}
+			deepest = Math.max(deepest, level);
+		}
+		long[] ends = new long[n];
+		for (int i = 0; i < n; i++) {
+			int shiftBits = 2 * (deepest - HTMid.getLevel(hids[i]));
+			ends[i] = ((hids[i] + 1) << shiftBits) - 1;
+			hids[i] <<= shiftBits;
+		}
+		Arrays.sort(hids, 0, n);
+		Arrays.sort(ends, 0, n);
+
+		ids = new long[Math.max(n, 4)];
+		size = 0;
+		for (int k = 0; k < n; k++) {
+			long lowerBound = hids[k];
+			while (k + 1 < n && hids[k + 1] <= ends[k] + 1) {
+				k++;
+			}
+			split(lowerBound, ends[k], deepest);
+		}
+		if (ids.length > size) {
+			ids = Arrays.copyOf(ids, size);
+		}
+	}
+
+	/**
+	 * Append the largest aligned Trixels making up a range
+	 * @param lo lower bound
+	 * @param hi upper bound
+	 * @param level level of bounds
+	 */
+	private void split(long lo, long hi, int level) {
+		while (lo <= hi) {
+			// Go up while lo starts the parent and the parent fits in the range
+			int up = 0;
+			while (up < level) {
+				long parentSize = 4L << 2 * up;
+				if ((lo & (parentSize - 1)) != 0 || lo + parentSize - 1 > hi) {
+					break;
+				}
+				up++;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, Math.max(size * 2, 4));
+			}
+			ids[size++] = lo >> 2 * up;
+			lo += 1L << 2 * up;
+		}
+	}
+
+	/**
+	 * Number of HTMids
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i index of HTMid, in the order of areas
+	 * @return HTMid in long form
+	 */
+	public long getId(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+		return ids[i];
+	}
+
+	public long[] toArray() {
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	 * Convert to ranges of a certain level
+	 * HTMids deeper than level are truncated, same as HTMRanges(List<Trixel>, level).
+	 * @param level level of HTMids in ranges, 0 to HTMid.maxLevel
+	 * @return HTMRanges
+	 */
+	public HTMRanges toRanges(int level) {
+		HTMRanges.checkLevel(level);
+		long[] lows = new long[size];
+		long[] highs = new long[size];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			int currentLevel = HTMid.getLevel(ids[i]);
+			long lo, hi;
+			if (currentLevel < level) {
+				int shiftBits = 2 * (level - currentLevel);
+				lo = ids[i] << shiftBits;
+				hi = ((ids[i] + 1) << shiftBits) - 1;
+			} else {
+				lo = ids[i] >> 2 * (currentLevel - level);
+				hi = lo;
+			}
+			if (n > 0 && lo <= highs[n - 1] + 1) {
+				highs[n - 1] = Math.max(highs[n - 1], hi);
+			} else {
+				lows[n] = lo;
+				highs[n] = hi;
+				n++;
+			}
+		}
+		return new HTMRanges(level, lows, highs, n);
+	}
+
+}
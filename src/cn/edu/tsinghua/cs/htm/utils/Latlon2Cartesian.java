@@ -10,12 +10,24 @@ import cn.edu.tsinghua.cs.htm.shapes.Cartesian;
 public class Latlon2Cartesian {
 	
 	public static Cartesian parse(double latitude, double longitude) {
+		double[] xyz = new double[3];
+		parse(latitude, longitude, xyz);
+		return new Cartesian(xyz[0], xyz[1], xyz[2]);
+	}
+	
+	/**
+	 * Convert without creating a Cartesian
+	 * @param latitude
+	 * @param longitude
+	 * @param xyz array of at least 3 to hold x, y and z
+	 */
+	public static void parse(double latitude, double longitude, double[] xyz) {
 		double latRadian = Math.PI * latitude / 180.0;
 		double lonRadian = Math.PI * longitude / 180.0;
-		double x = Constants.scale * Math.cos(latRadian) * Math.cos(lonRadian);
-		double y = Constants.scale * Math.cos(latRadian) * Math.sin(lonRadian);
-		double z = Constants.scale * Math.sin(latRadian);
-		return new Cartesian(x, y, z);
+		double cosLat = Math.cos(latRadian);
+		xyz[0] = Constants.scale * cosLat * Math.cos(lonRadian);
+		xyz[1] = Constants.scale * cosLat * Math.sin(lonRadian);
+		xyz[2] = Constants.scale * Math.sin(latRadian);
 	}
 
 }
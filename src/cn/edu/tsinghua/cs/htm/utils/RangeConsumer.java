@@ -0,0 +1,16 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+/**
+ * Receives HTMid ranges one by one
+ * Used to stream ranges without collecting them first
+ */
+public interface RangeConsumer {
+	
+	/**
+	 * Receive a range of HTMids in long form
+	 * @param lo lower bound, inclusive
+	 * @param hi upper bound, inclusive
+	 */
+	void accept(long lo, long hi);
+
+}
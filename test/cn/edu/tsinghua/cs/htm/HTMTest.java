@@ -0,0 +1,116 @@
+package cn.edu.tsinghua.cs.htm;
+
+import java.util.List;
+import java.util.Random;
+
+import cn.edu.tsinghua.cs.htm.shapes.Cartesian;
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+
+/**
+ * Checks HTM.encode() against descending with Trixel.expand()
+ * The descent is the former Cartesian2HTMid(), kept here as the reference.
+ * Points lie anywhere, on corners of Trixels or on their edges,
+ * and depths reach past the levels held by the Mesh.
+ */
+public class HTMTest {
+
+	public static void main(String[] args) {
+		HTM htm = HTM.getInstance();
+		Random random = new Random(1);
+		int edges = 0;
+		for (int i = 0; i < 30000; i++) {
+			int depth = random.nextInt(21);
+			Cartesian p;
+			if (random.nextInt(3) == 0) {
+				p = onEdge(random, htm);
+				edges++;
+			} else {
+				p = new Cartesian(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			}
+			p = p.multiply(Math.pow(10, random.nextDouble() * 6 - 3));
+			double[] xyz = p.get();
+			long expected = descend(htm, p, depth);
+			check(htm.encode(xyz[0], xyz[1], xyz[2], depth) == expected,
+					"encode " + p + " at depth " + depth);
+			check(htm.Cartesian2HTMid(p, depth).getId() == expected, "Cartesian2HTMid " + p);
+		}
+
+		double[] x = new double[5000], y = new double[5000], z = new double[5000];
+		long[] hids = new long[5000];
+		for (int i = 0; i < x.length; i++) {
+			x[i] = random.nextGaussian();
+			y[i] = random.nextGaussian();
+			z[i] = random.nextGaussian();
+		}
+		htm.encode(x, y, z, 12, hids);
+		for (int i = 0; i < x.length; i++) {
+			check(hids[i] == htm.encode(x[i], y[i], z[i], 12), "batch encode at " + i);
+		}
+
+		for (int depth : new int[] {-1, HTMid.maxLevel + 1, 64}) {
+			try {
+				htm.encode(1, 2, 3, depth);
+				check(false, "depth " + depth + " accepted");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		check(HTMid.getLevel(htm.encode(1, 2, 3, HTMid.maxLevel)) == HTMid.maxLevel, "deepest level");
+		System.out.println("HTMTest passed, " + edges + " points on edges");
+	}
+
+	/**
+	 * Former Cartesian2HTMid(): strict tests on all children, then loose ones
+	 */
+	private static long descend(HTM htm, Cartesian p, int depth) {
+		HTMid topID = htm.getTopHTMid(p);
+		if (topID.getId() < 8) {
+			return 0;
+		}
+		Trixel trixel = htm.getTopTrixel((int) (topID.getId() - 8));
+		while (depth-- > 0) {
+			List<Trixel> children = trixel.expand();
+			boolean found = false;
+			for (Trixel child : children) {
+				if (child.containsStrict(p)) {
+					trixel = child;
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				for (Trixel child : children) {
+					if (child.containsLoose(p)) {
+						trixel = child;
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					return 0;
+				}
+			}
+		}
+		return trixel.getHTMid().getId();
+	}
+
+	/**
+	 * Corner or edge midpoint of a random Trixel, where children meet
+	 */
+	private static Cartesian onEdge(Random random, HTM htm) {
+		Trixel trixel = htm.getTopTrixel(random.nextInt(8));
+		for (int level = random.nextInt(12); level > 0; level--) {
+			trixel = trixel.expand().get(random.nextInt(4));
+		}
+		Cartesian a = trixel.getCorner(random.nextInt(3));
+		Cartesian b = trixel.getCorner(random.nextInt(3));
+		return a.add(b);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
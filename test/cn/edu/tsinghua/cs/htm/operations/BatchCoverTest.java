@@ -0,0 +1,152 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import cn.edu.tsinghua.cs.htm.shapes.Cartesian;
+import cn.edu.tsinghua.cs.htm.shapes.Convex;
+import cn.edu.tsinghua.cs.htm.shapes.Halfspace;
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+import cn.edu.tsinghua.cs.htm.utils.HTMRanges;
+
+/**
+ * Checks that BatchCover gives each query the cover of a Cover of its own
+ * Queries are boxes and triangles in either order of vertices, boxes
+ * cut by caps, mixed and negative convexes, and missing ones, of sizes from
+ * a fraction of a degree to tens of degrees, so that bounding circles
+ * of queries both skip Trixels and are missing.
+ * Points inside a query must be inside its bounding circle.
+ */
+public class BatchCoverTest {
+
+	public static void main(String[] args) {
+		Random random = new Random(11);
+		int circles = 0;
+		for (int depth : new int[] {0, 3, 8}) {
+			List<Convex> convexes = new ArrayList<Convex>();
+			for (int i = 0; i < 300; i++) {
+				convexes.add(randomConvex(random, i));
+			}
+			BatchCover batch = new BatchCover(convexes, depth);
+			batch.run();
+			check(batch.size() == convexes.size(), "size " + batch.size());
+			List<HTMRanges> batchRanges = batch.getHTMRanges(12);
+			for (int q = 0; q < convexes.size(); q++) {
+				List<Long> expected = new ArrayList<Long>();
+				HTMRanges ranges = new HTMRanges(new ArrayList<Trixel>(), 12);
+				if (convexes.get(q) != null && convexes.get(q).getBoundingCircle() != null) {
+					circles++;
+				}
+				if (convexes.get(q) != null) {
+					Cover cover = new Cover(convexes.get(q), depth);
+					cover.run();
+					expected = sortedIds(cover.getTrixels());
+					ranges = cover.getHTMRanges(12);
+					checkBoundingCircle(random, convexes.get(q), cover.getTrixels(), q);
+				}
+				check(sortedIds(batch.getTrixels(q)).equals(expected),
+						"Trixels of query " + q + " at depth " + depth);
+				check(sameRanges(batchRanges.get(q), ranges),
+						"ranges of query " + q + " at depth " + depth);
+			}
+		}
+		// At least the 450 boxes and triangles in order or cut by caps, but those over a pole
+		check(circles >= 400, "bounding circles of " + circles + " queries");
+		System.out.println("BatchCoverTest passed, " + circles + " bounding circles");
+	}
+
+	private static Convex randomConvex(Random random, int i) {
+		double lat = random.nextDouble() * 160 - 80;
+		double lon = random.nextDouble() * 360 - 180;
+		double size = Math.pow(10, random.nextDouble() * 2.5 - 1);
+		String center = String.format(Locale.ROOT, "%f,%f,", lat, lon);
+		String[] box = {
+				String.format(Locale.ROOT, "%f,%f", lat - size, lon - size),
+				String.format(Locale.ROOT, "%f,%f", lat + size, lon - size),
+				String.format(Locale.ROOT, "%f,%f", lat + size, lon + size),
+				String.format(Locale.ROOT, "%f,%f", lat - size, lon + size)};
+		Convex convex;
+		switch (i % 8) {
+		case 0:
+			return Convex.parseVertices(box, true);
+		case 1:
+			// Counter-clockwise, the outside of the box
+			Collections.reverse(Arrays.asList(box));
+			return Convex.parseVertices(box, true);
+		case 2:
+			return Convex.parseVertices(new String[] {box[0], box[1], box[2]}, true);
+		case 3:
+			// Box cut by a cap around its corners
+			convex = Convex.parseVertices(box, true);
+			convex.addHalfspace(Halfspace.parseCircle(center + 1.2 * size, true));
+			return convex;
+		case 4:
+			// Box cut by a cap inside it
+			convex = Convex.parseVertices(box, true);
+			convex.addHalfspace(Halfspace.parseCircle(center + 0.8 * size, true));
+			return convex;
+		case 5:
+			// Mixed, box with a hole
+			convex = Convex.parseVertices(box, true);
+			convex.addHalfspace(Halfspace.parseCircle(center + (180 - size / 2), true));
+			return convex;
+		case 6:
+			convex = new Convex();
+			convex.addHalfspace(Halfspace.parseCircle(center + (180 - size), true));
+			return convex;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Sampled points inside the query, in its covering Trixels, are in its bounding circle
+	 */
+	private static void checkBoundingCircle(Random random, Convex convex, List<Trixel> trixels, int q) {
+		Halfspace circle = convex.getBoundingCircle();
+		if (circle == null || trixels.isEmpty()) {
+			return;
+		}
+		for (int s = 0; s < 200; s++) {
+			Trixel trixel = trixels.get(random.nextInt(trixels.size()));
+			double w0 = random.nextDouble(), w1 = random.nextDouble(), w2 = random.nextDouble();
+			Cartesian p = trixel.getCorner(0).multiply(w0).add(trixel.getCorner(1).multiply(w1))
+					.add(trixel.getCorner(2).multiply(w2)).normalize();
+			if (convex.containsLoose(p)) {
+				check(circle.containsLoose(p), "point of query " + q + " outside its bounding circle");
+			}
+		}
+	}
+
+	private static List<Long> sortedIds(List<Trixel> trixels) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Trixel trixel : trixels) {
+			ids.add(trixel.getHTMid().getId());
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private static boolean sameRanges(HTMRanges a, HTMRanges b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (a.getLowerBound(i) != b.getLowerBound(i) || a.getUpperBound(i) != b.getUpperBound(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,280 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import cn.edu.tsinghua.cs.htm.shapes.Cartesian;
+import cn.edu.tsinghua.cs.htm.shapes.Convex;
+import cn.edu.tsinghua.cs.htm.shapes.Halfspace;
+import cn.edu.tsinghua.cs.htm.shapes.Region;
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+import cn.edu.tsinghua.cs.htm.utils.HTMRanges;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+import cn.edu.tsinghua.cs.htm.utils.Markup;
+import cn.edu.tsinghua.cs.htm.utils.Pair;
+import cn.edu.tsinghua.cs.htm.utils.RangeConsumer;
+
+/**
+ * Checks that covers of small, thin triangles contain their inside
+ * Points sampled inside each triangle must be in some covering Trixel,
+ * tested with triple products on the Trixel corners, independent of
+ * the markup code. Empty or partial covers of such triangles
+ * came from comparing unnormalized great circles in Halfspace.
+ * Also checks that runCompact() and runParallel() give the same Trixels
+ * and ranges as run() for shapes of every sign, and that runDepthFirst()
+ * streams the ranges of run(). Deepening a shallower cover of any method
+ * must give the cover of run() at the new depth.
+ */
+public class CoverTest {
+
+	public static void main(String[] args) {
+		checkThinTriangles(0.01, 14);
+		checkThinTriangles(0.05, 12);
+		checkThinTriangles(0.5, 10);
+		checkCompact();
+		checkParallel();
+		checkDepthFirst();
+		checkDeepen();
+		System.out.println("CoverTest passed");
+	}
+
+	private static void checkThinTriangles(double size, int depth) {
+		for (int seed = 21; seed <= 23; seed++) {
+			Random random = new Random(seed);
+			for (int i = 0; i < 100; i++) {
+				double lat = random.nextDouble() * 160 - 80;
+				double lon = random.nextDouble() * 360 - 180;
+				double theta = random.nextDouble() * 360;
+				double squash = random.nextDouble() * 0.9 + 0.1;
+				String[] vertices = new String[3];
+				double[][] corners = new double[3][];
+				for (int k = 0; k < 3; k++) {
+					double angle = Math.toRadians(theta - 120 * k);
+					double r = size * (k == 1 ? squash : 1);
+					double vertexLat = lat + r * Math.sin(angle);
+					double vertexLon = lon + r * Math.cos(angle) / Math.cos(Math.toRadians(lat));
+					vertices[k] = String.format(Locale.ROOT, "%.8f,%.8f", vertexLat, vertexLon);
+					corners[k] = toXyz(Double.parseDouble(vertices[k].split(",")[0]),
+							Double.parseDouble(vertices[k].split(",")[1]));
+				}
+				Cover cover = new Cover(Convex.parseVertices(vertices, true), depth);
+				cover.run();
+				List<Trixel> trixels = cover.getTrixels();
+				Random sampler = new Random(i);
+				for (int s = 0; s < 200; s++) {
+					double[] p = new double[3];
+					double w0 = 0.05 + sampler.nextDouble();
+					double w1 = 0.05 + sampler.nextDouble();
+					double w2 = 0.05 + sampler.nextDouble();
+					for (int d = 0; d < 3; d++) {
+						p[d] = w0 * corners[0][d] + w1 * corners[1][d] + w2 * corners[2][d];
+					}
+					if (!covered(trixels, p)) {
+						throw new AssertionError("Point not covered, size " + size + ", depth "
+								+ depth + ", seed " + seed + ", triangle " + i + ", "
+								+ trixels.size() + " Trixels");
+					}
+				}
+			}
+		}
+	}
+
+	private static void checkCompact() {
+		List<Cover[]> pairs = pairs(9, 9);
+		for (int k = 0; k < pairs.size(); k++) {
+			Cover[] covers = pairs.get(k);
+			covers[0].run();
+			covers[1].runCompact();
+			checkSame(covers[0], covers[1], "runCompact(), shape " + k);
+		}
+	}
+
+	private static void checkParallel() {
+		List<Cover[]> pairs = pairs(9, 9);
+		for (int k = 0; k < pairs.size(); k++) {
+			Cover[] covers = pairs.get(k);
+			covers[0].run();
+			covers[1].runParallel();
+			checkSame(covers[0], covers[1], "runParallel(), shape " + k);
+		}
+	}
+
+	/**
+	 * Ranges streamed depth-first at levels above, at and below the depth
+	 */
+	private static void checkDepthFirst() {
+		List<Cover[]> pairs = pairs(9, 9);
+		for (int k = 0; k < pairs.size(); k++) {
+			Cover[] covers = pairs.get(k);
+			covers[0].run();
+			for (int level : new int[] {5, 9, 12}) {
+				HTMRanges ranges = covers[0].getHTMRanges(level);
+				List<Long> expected = new ArrayList<Long>();
+				for (int i = 0; i < ranges.size(); i++) {
+					expected.add(ranges.getLowerBound(i));
+					expected.add(ranges.getUpperBound(i));
+				}
+				final List<Long> actual = new ArrayList<Long>();
+				covers[1].runDepthFirst(level, new RangeConsumer() {
+					@Override
+					public void accept(long lo, long hi) {
+						actual.add(lo);
+						actual.add(hi);
+					}
+				});
+				if (!actual.equals(expected)) {
+					throw new AssertionError("runDepthFirst() differs from run() at level "
+							+ level + ", shape " + k);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Covers run shallower by each method, then deepened
+	 */
+	private static void checkDeepen() {
+		for (int shallower : new int[] {1, 3, 9}) {
+			List<Cover[]> pairs = pairs(9, 9 - shallower);
+			for (int k = 0; k < pairs.size(); k++) {
+				Cover[] covers = pairs.get(k);
+				covers[0].run();
+				String what;
+				switch (k % 3) {
+				case 0:
+					covers[1].run();
+					what = "run()";
+					break;
+				case 1:
+					covers[1].runParallel();
+					what = "runParallel()";
+					break;
+				default:
+					covers[1].runCompact();
+					what = "runCompact()";
+				}
+				covers[1].deepen(9);
+				checkSame(covers[0], covers[1], what + " at depth " + (9 - shallower)
+						+ " and deepen(9), shape " + k);
+			}
+		}
+	}
+
+	/**
+	 * Two Covers of each shape, boxes, circles and their complements,
+	 * mixed and negative convexes, and regions
+	 * @return pairs of Covers to the expected and the actual depth
+	 */
+	private static List<Cover[]> pairs(int expectedDepth, int actualDepth) {
+		List<Cover[]> pairs = new ArrayList<Cover[]>();
+		Random random = new Random(16);
+		for (int i = 0; i < 60; i++) {
+			double lat = random.nextDouble() * 160 - 80;
+			double lon = random.nextDouble() * 360 - 180;
+			double size = Math.pow(10, random.nextDouble() * 2 - 0.5);
+			String[] vertices = {
+					String.format(Locale.ROOT, "%f,%f", lat - size, lon - size),
+					String.format(Locale.ROOT, "%f,%f", lat + size, lon - size),
+					String.format(Locale.ROOT, "%f,%f", lat + size, lon + size),
+					String.format(Locale.ROOT, "%f,%f", lat - size, lon + size)};
+			String center = String.format(Locale.ROOT, "%f,%f,", lat, lon);
+			Convex convex = Convex.parseVertices(vertices, true);
+			Halfspace circle = Halfspace.parseCircle(center + size, true);
+			Halfspace hole = Halfspace.parseCircle(center + (180 - size / 2), true);
+			switch (i % 5) {
+			case 0:
+				pairs.add(new Cover[] {new Cover(convex, expectedDepth), new Cover(convex, actualDepth)});
+				break;
+			case 1:
+				pairs.add(new Cover[] {new Cover(circle, expectedDepth), new Cover(circle, actualDepth)});
+				pairs.add(new Cover[] {new Cover(hole, expectedDepth), new Cover(hole, actualDepth)});
+				break;
+			case 2:
+				// Mixed
+				convex.addHalfspace(hole);
+				pairs.add(new Cover[] {new Cover(convex, expectedDepth), new Cover(convex, actualDepth)});
+				break;
+			case 3:
+				// Negative
+				convex = new Convex();
+				convex.addHalfspace(hole);
+				convex.addHalfspace(Halfspace.parseCircle(center + (180 - size), true));
+				pairs.add(new Cover[] {new Cover(convex, expectedDepth), new Cover(convex, actualDepth)});
+				break;
+			default:
+				List<Convex> convexes = new ArrayList<Convex>();
+				convexes.add(convex);
+				convexes.add(Convex.parseVertices(new String[] {
+						vertices[0], vertices[2], String.format(Locale.ROOT, "%f,%f",
+								lat - size, lon + 3 * size)}, true));
+				Region region = new Region(convexes);
+				pairs.add(new Cover[] {new Cover(region, expectedDepth), new Cover(region, actualDepth)});
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Same Trixels in the same order, and the same HTMid pairs
+	 * at levels above and below the depth
+	 */
+	private static void checkSame(Cover expected, Cover actual, String what) {
+		if (!ids(expected.getTrixels()).equals(ids(actual.getTrixels()))
+				|| !ids(expected.getTrixels(Markup.Full)).equals(ids(actual.getTrixels(Markup.Full)))) {
+			throw new AssertionError(what + " differs from run() in Trixels");
+		}
+		for (int level : new int[] {5, 12}) {
+			if (!pairIds(expected.getHTMidPairs(level)).equals(pairIds(actual.getHTMidPairs(level)))) {
+				throw new AssertionError(what + " differs from run() in HTMid pairs at level " + level);
+			}
+		}
+	}
+
+	private static List<Long> pairIds(List<Pair<HTMid, HTMid> > pairs) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Pair<HTMid, HTMid> pair : pairs) {
+			ids.add(pair.a.getId());
+			ids.add(pair.b.getId());
+		}
+		return ids;
+	}
+
+	private static List<Long> ids(List<Trixel> trixels) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Trixel trixel : trixels) {
+			ids.add(trixel.getHTMid().getId());
+		}
+		return ids;
+	}
+
+	private static boolean covered(List<Trixel> trixels, double[] p) {
+		for (Trixel trixel : trixels) {
+			double[] v0 = trixel.getCorner(0).get();
+			double[] v1 = trixel.getCorner(1).get();
+			double[] v2 = trixel.getCorner(2).get();
+			double tolerance = 1e-12 * Math.abs(det(v0, v1, v2));
+			double s0 = det(v0, v1, p), s1 = det(v1, v2, p), s2 = det(v2, v0, p);
+			if ((s0 >= -tolerance && s1 >= -tolerance && s2 >= -tolerance)
+					|| (s0 <= tolerance && s1 <= tolerance && s2 <= tolerance)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static double det(double[] a, double[] b, double[] c) {
+		return a[0] * (b[1] * c[2] - b[2] * c[1])
+				- a[1] * (b[0] * c[2] - b[2] * c[0])
+				+ a[2] * (b[0] * c[1] - b[1] * c[0]);
+	}
+
+	private static double[] toXyz(double lat, double lon) {
+		Cartesian c = new Cartesian(Math.cos(Math.toRadians(lat)) * Math.cos(Math.toRadians(lon)),
+				Math.cos(Math.toRadians(lat)) * Math.sin(Math.toRadians(lon)),
+				Math.sin(Math.toRadians(lat)));
+		return c.get();
+	}
+
+}
@@ -0,0 +1,53 @@
+package cn.edu.tsinghua.cs.htm.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import cn.edu.tsinghua.cs.htm.HTM;
+import cn.edu.tsinghua.cs.htm.utils.HTMid;
+
+/**
+ * Checks the text output of Encode, including points without an HTMid
+ * The origin and NaN coordinates encode to 0 and get an empty column.
+ */
+public class EncodeTest {
+
+	public static void main(String[] args) throws IOException {
+		List<String> points = Arrays.asList("0,0,0", "NaN,1,2", "1,0,0,extra", "0.3,0.4,0.5");
+		File in = File.createTempFile("encode", ".txt");
+		File out = File.createTempFile("encode", ".out");
+		try {
+			Files.write(in.toPath(), points, StandardCharsets.ISO_8859_1);
+			for (boolean longForm : new boolean[] {false, true}) {
+				long count = new Encode(8, false, false, longForm)
+						.run(in.getPath(), out.getPath(), false, 2, 1 << 20);
+				check(count == points.size(), "count " + count);
+				List<String> lines = Files.readAllLines(out.toPath(), StandardCharsets.ISO_8859_1);
+				check(lines.size() == points.size(), "lines " + lines.size());
+				for (int i = 0; i < points.size(); i++) {
+					String[] xyz = points.get(i).split(",");
+					long hid = HTM.getInstance().encode(Double.parseDouble(xyz[0]),
+							Double.parseDouble(xyz[1]), Double.parseDouble(xyz[2]), 8);
+					String column = hid == 0 ? "" : longForm ? Long.toString(hid) : HTMid.idToName(hid);
+					check(lines.get(i).equals(points.get(i) + "," + column), lines.get(i));
+				}
+				check(lines.get(0).equals("0,0,0,"), "origin: " + lines.get(0));
+			}
+		} finally {
+			in.delete();
+			out.delete();
+		}
+		System.out.println("EncodeTest passed");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
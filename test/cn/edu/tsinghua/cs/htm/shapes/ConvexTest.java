@@ -0,0 +1,115 @@
+package cn.edu.tsinghua.cs.htm.shapes;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the batch filters of Convex against containsStrict(Cartesian)
+ * Points are of any length, some lie on the boundaries and some are NaN,
+ * and counts are not multiples of the block size.
+ */
+public class ConvexTest {
+
+	public static void main(String[] args) {
+		Random random = new Random(19);
+		int inside = 0;
+		for (int i = 0; i < 200; i++) {
+			Convex convex = randomConvex(random);
+			int n = 1 + random.nextInt(3000);
+			double[] x = new double[n], y = new double[n], z = new double[n];
+			for (int j = 0; j < n; j++) {
+				Cartesian p = randomPoint(random, convex);
+				x[j] = p.x;
+				y[j] = p.y;
+				z[j] = p.z;
+			}
+
+			BitSet selected = new BitSet();
+			selected.set(0, n + 10);
+			convex.containsStrict(x, y, z, selected);
+			int[] indices = new int[n];
+			int count = convex.selectStrict(x, y, z, indices);
+
+			int k = 0;
+			for (int j = 0; j < n; j++) {
+				boolean expected = convex.containsStrict(new Cartesian(x[j], y[j], z[j]));
+				check(selected.get(j) == expected, "containsStrict at " + j, convex);
+				if (expected) {
+					check(k < count && indices[k] == j, "selectStrict at " + j, convex);
+					k++;
+				}
+			}
+			check(k == count, "selectStrict count " + count + " != " + k, convex);
+			check(selected.nextSetBit(n) == n, "bits past the points cleared", convex);
+			inside += count;
+		}
+		check(inside > 10000, "too few points inside: " + inside, null);
+
+		Convex convex = randomConvex(random);
+		try {
+			convex.containsStrict(new double[3], new double[3], new double[2], new BitSet());
+			check(false, "lengths not checked", convex);
+		} catch (IllegalArgumentException e) {
+		}
+		System.out.println("ConvexTest passed, " + inside + " points inside");
+	}
+
+	/**
+	 * Polygon of great circle arcs, circle, or a polygon cut by a circle
+	 */
+	private static Convex randomConvex(Random random) {
+		Cartesian center = new Cartesian(random.nextGaussian(),
+				random.nextGaussian(), random.nextGaussian()).normalize();
+		double radius = Math.pow(10, random.nextDouble() * 3 - 1.5);
+		Convex convex = new Convex();
+		int kind = random.nextInt(3);
+		if (kind != 1) {
+			// Vertices clockwise around the center, seen from outside
+			Cartesian u = center.cross(new Cartesian(0, 0, 1)).normalize();
+			Cartesian v = center.cross(u);
+			int count = 3 + random.nextInt(4);
+			List<Cartesian> vertices = new ArrayList<Cartesian>();
+			double r = Math.tan(Math.toRadians(radius));
+			for (int i = 0; i < count; i++) {
+				double angle = -2 * Math.PI * i / count;
+				vertices.add(center.add(u.multiply(r * Math.cos(angle)))
+						.add(v.multiply(r * Math.sin(angle))).normalize());
+			}
+			convex.buildByVertices(vertices);
+		}
+		if (kind != 0) {
+			convex.addHalfspace(Halfspace.fromCircle(center, radius * 0.9));
+		}
+		return convex;
+	}
+
+	/**
+	 * Point near the Convex, on a boundary, or NaN
+	 */
+	private static Cartesian randomPoint(Random random, Convex convex) {
+		int kind = random.nextInt(20);
+		if (kind == 0) {
+			return new Cartesian(Double.NaN, 0, 0);
+		}
+		if (kind == 1 && !convex.vertices.isEmpty()) {
+			return convex.vertices.get(random.nextInt(convex.vertices.size()));
+		}
+		Cartesian center = new Cartesian(0, 0, 0);
+		for (Halfspace halfspace : convex.halfspaces) {
+			center = center.add(halfspace.vector.normalize());
+		}
+		double spread = Math.pow(10, random.nextDouble() * 3 - 3);
+		Cartesian p = center.normalize().add(new Cartesian(random.nextGaussian() * spread,
+				random.nextGaussian() * spread, random.nextGaussian() * spread));
+		return p.multiply(Math.pow(10, random.nextDouble() * 4 - 2));
+	}
+
+	private static void check(boolean condition, String message, Convex convex) {
+		if (!condition) {
+			throw new AssertionError(message + ": " + convex);
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package cn.edu.tsinghua.cs.htm.shapes;
+
+import java.util.Random;
+
+import cn.edu.tsinghua.cs.htm.utils.Constants;
+
+/**
+ * Checks Halfspace.exclusive() and contains() against angles from acos()
+ * Great circles get vectors of arbitrary length, as Convex.buildByVertices() makes.
+ */
+public class HalfspaceTest {
+
+	public static void main(String[] args) {
+		Random random = new Random(18);
+		int checked = 0;
+		for (int i = 0; i < 200000; i++) {
+			Halfspace a = randomHalfspace(random);
+			Halfspace b = randomHalfspace(random);
+			double cosRelative = a.vector.dot(b.vector) / (a.vector.length() * b.vector.length());
+			double relative = Math.acos(Math.max(-1, Math.min(1, cosRelative)));
+			double radiusA = Math.acos(a.distance / Constants.scale);
+			double radiusB = Math.acos(b.distance / Constants.scale);
+
+			// Skip cases too close to call in floating point
+			if (Math.abs(relative - (radiusA + radiusB)) > 1e-9 && radiusA + radiusB < Math.PI) {
+				check(a.exclusive(b) == (relative > radiusA + radiusB),
+						"exclusive", a, b);
+				checked++;
+			}
+			if (Math.abs(radiusA - radiusB - relative) > 1e-9) {
+				check(a.contains(b) == (radiusA - radiusB > relative),
+						"contains", a, b);
+				checked++;
+			}
+		}
+		check(checked > 200000, "too few cases checked: " + checked, null, null);
+		System.out.println("HalfspaceTest passed, " + checked + " cases");
+	}
+
+	/**
+	 * Circle of random radius, or great circle with a vector of random length
+	 */
+	private static Halfspace randomHalfspace(Random random) {
+		Cartesian direction = new Cartesian(random.nextGaussian(),
+				random.nextGaussian(), random.nextGaussian());
+		if (random.nextInt(3) == 0) {
+			double length = Math.pow(10, random.nextDouble() * 14 - 3);
+			return new Halfspace(direction.normalize().multiply(length), 0);
+		}
+		double radius = random.nextDouble() * 180;
+		return Halfspace.fromCircle(direction, radius);
+	}
+
+	private static void check(boolean condition, String message, Halfspace a, Halfspace b) {
+		if (!condition) {
+			throw new AssertionError(message + ": " + a + ", " + b);
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Checks HTMBitmap against a BitSet of HTMids
+ * Chunks are empty, full, sparse, dense or runs, so every kind
+ * of container is built, and runs cross chunk borders.
+ */
+public class HTMBitmapTest {
+
+	private static final int chunkSize = 1 << 16;
+
+	public static void main(String[] args) {
+		Random random = new Random(24);
+		int bitmaps = 0;
+		for (int i = 0; i < 60; i++) {
+			int levelA = 8 + random.nextInt(2);
+			int levelB = 8 + random.nextInt(2);
+			BitSet bitsA = randomBits(random, levelA);
+			BitSet bitsB = randomBits(random, levelB);
+			HTMRanges rangesA = toRanges(bitsA, levelA);
+			HTMRanges rangesB = toRanges(bitsB, levelB);
+			HTMBitmap a = new HTMBitmap(rangesA);
+			HTMBitmap b = new HTMBitmap(rangesB);
+			checkSame(a, bitsA, levelA, "from ranges");
+			checkSame(new HTMBitmap(a), bitsA, levelA, "from bitmap");
+			check(a.getCardinality() == bitsA.cardinality(), "cardinality " + a.getCardinality());
+			checkLookups(random, a, bitsA, levelA);
+
+			HTMRangeSet chosen = HTMBitmap.choose(rangesA);
+			checkSame(chosen, bitsA, levelA, "chosen");
+			if (chosen instanceof HTMBitmap) {
+				check(chosen.getSizeInBytes() < rangesA.getSizeInBytes(), "chose the larger bitmap");
+				bitmaps++;
+			} else {
+				check(chosen == rangesA, "chose a copy of ranges");
+			}
+
+			int level = Math.max(levelA, levelB);
+			BitSet finerA = extend(bitsA, levelA, level);
+			BitSet finerB = extend(bitsB, levelB, level);
+			BitSet expected = (BitSet) finerA.clone();
+			expected.and(finerB);
+			checkSame(a.and(b), expected, level, "and");
+			expected = (BitSet) finerA.clone();
+			expected.or(finerB);
+			checkSame(a.or(b), expected, level, "or");
+		}
+		check(bitmaps > 0, "ranges always chosen");
+
+		// A few long runs stay as ranges
+		BitSet sparse = new BitSet();
+		for (int k = 0; k < 10; k++) {
+			int lo = (8 << 18) + random.nextInt(8 << 18);
+			sparse.set(lo, Math.min(lo + random.nextInt(1 << 20), 16 << 18));
+		}
+		HTMRanges sparseRanges = toRanges(sparse, 9);
+		check(HTMBitmap.choose(sparseRanges) == sparseRanges, "sparse ranges made a bitmap");
+		checkSame(new HTMBitmap(sparseRanges), sparse, 9, "sparse");
+		System.out.println("HTMBitmapTest passed, " + bitmaps + " bitmaps chosen");
+	}
+
+	/**
+	 * Indexed by HTMid, chunks of HTMids at levels 8 and deeper are aligned
+	 */
+	private static BitSet randomBits(Random random, int level) {
+		BitSet bits = new BitSet();
+		int first = 8 << 2 * level, end = 16 << 2 * level;
+		for (int chunk = first; chunk < end; chunk += chunkSize) {
+			switch (random.nextInt(7)) {
+			case 0:
+				break;
+			case 1:
+				bits.set(chunk, chunk + chunkSize);
+				break;
+			case 2:
+				// Sparse, an array
+				for (int k = random.nextInt(4096); k > 0; k--) {
+					bits.set(chunk + random.nextInt(chunkSize));
+				}
+				break;
+			case 3:
+				// Dense, a bitmap
+				for (int k = 0; k < chunkSize; k++) {
+					if (random.nextInt(3) != 0) {
+						bits.set(chunk + k);
+					}
+				}
+				break;
+			case 4:
+				// Few long runs
+				for (int k = random.nextInt(50); k > 0; k--) {
+					int lo = chunk + random.nextInt(chunkSize);
+					bits.set(lo, Math.min(lo + random.nextInt(5000), chunk + chunkSize));
+				}
+				break;
+			case 5:
+				// Run across the border with the next chunk
+				bits.set(chunk + chunkSize - 1 - random.nextInt(100),
+						Math.min(chunk + chunkSize + 1 + random.nextInt(100), end));
+				break;
+			default:
+				bits.set(chunk + random.nextInt(chunkSize));
+				break;
+			}
+		}
+		return bits;
+	}
+
+	private static HTMRanges toRanges(BitSet bits, int level) {
+		long[] lows = new long[bits.cardinality()], highs = new long[bits.cardinality()];
+		int n = 0;
+		for (int lo = bits.nextSetBit(0); lo >= 0; lo = bits.nextSetBit(lo + 1)) {
+			int hi = bits.nextClearBit(lo) - 1;
+			lows[n] = lo;
+			highs[n] = hi;
+			n++;
+			lo = hi;
+		}
+		return new HTMRanges(level, lows, highs, n);
+	}
+
+	private static BitSet extend(BitSet bits, int level, int newLevel) {
+		int shiftBits = 2 * (newLevel - level);
+		BitSet extended = new BitSet();
+		for (int hid = bits.nextSetBit(0); hid >= 0; hid = bits.nextSetBit(hid + 1)) {
+			extended.set(hid << shiftBits, (hid + 1) << shiftBits);
+		}
+		return extended;
+	}
+
+	/**
+	 * Ranges of the set must be the runs of the BitSet, merged across chunks
+	 */
+	private static void checkSame(HTMRangeSet set, BitSet bits, int level, String what) {
+		check(set.getLevel() == level, what + ": level " + set.getLevel());
+		HTMRanges ranges = set.toRanges();
+		int i = 0;
+		for (int lo = bits.nextSetBit(0); lo >= 0; lo = bits.nextSetBit(lo + 1)) {
+			int hi = bits.nextClearBit(lo) - 1;
+			check(i < ranges.size(), what + ": missing range " + lo + ", " + hi);
+			check(ranges.getLowerBound(i) == lo && ranges.getUpperBound(i) == hi,
+					what + ": range " + i + " is " + ranges.getLowerBound(i) + ", "
+					+ ranges.getUpperBound(i) + " instead of " + lo + ", " + hi);
+			i++;
+			lo = hi;
+		}
+		check(i == ranges.size(), what + ": " + ranges.size() + " ranges instead of " + i);
+	}
+
+	/**
+	 * contains() and overlaps() of HTMids at, above and below the level,
+	 * and the batch form on sorted HTMids of the level
+	 */
+	private static void checkLookups(Random random, HTMBitmap bitmap, BitSet bits, int level) {
+		long[] hids = new long[3000];
+		for (int k = 0; k < hids.length; k++) {
+			int thatLevel = Math.max(level - 8 + random.nextInt(11), 0);
+			hids[k] = (8L << 2 * thatLevel) + (long) (random.nextDouble() * (8L << 2 * thatLevel));
+		}
+		hids[0] = 0;
+		hids[1] = -1;
+		hids[2] = 8L << 2 * level;
+		hids[3] = (16L << 2 * level) - 1;
+		checkBatch(bitmap, hids);
+		for (long hid : hids) {
+			boolean contains = false, overlaps = false;
+			int thatLevel = HTMid.getLevel(hid);
+			if (thatLevel >= 0 && thatLevel >= level) {
+				contains = overlaps = bits.get((int) HTMid.truncate(hid, level));
+			} else if (thatLevel >= 0) {
+				int lo = (int) HTMid.extendLower(hid, level);
+				int hi = (int) HTMid.extendUpper(hid, level);
+				contains = bits.nextClearBit(lo) > hi;
+				int next = bits.nextSetBit(lo);
+				overlaps = next >= 0 && next <= hi;
+			}
+			check(bitmap.contains(hid) == contains, "contains " + hid);
+			check(bitmap.overlaps(hid) == overlaps, "overlaps " + hid);
+		}
+
+		long[] sorted = new long[3000];
+		long hid = 8L << 2 * level;
+		for (int k = 0; k < sorted.length; k++) {
+			hid += random.nextInt(chunkSize / 8);
+			sorted[k] = hid;
+		}
+		checkBatch(bitmap, sorted);
+	}
+
+	private static void checkBatch(HTMBitmap bitmap, long[] hids) {
+		BitSet out = new BitSet();
+		out.set(0, hids.length + 5);
+		bitmap.contains(hids, out);
+		check(out.nextClearBit(hids.length) == hids.length + 5, "bits past the HTMids kept");
+		for (int k = 0; k < hids.length; k++) {
+			check(out.get(k) == bitmap.contains(hids[k]), "batch contains " + hids[k]);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Checks that HTMRanges read back from binary and raw files are the ranges written
+ * Ranges are at deep levels with gaps of any size, and truncated
+ * or foreign files must be rejected with an IOException.
+ * Mapped ranges must answer lookups and set operations as the arrays do.
+ */
+public class HTMRangesFileTest {
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(14);
+		File file = File.createTempFile("ranges", ".bin");
+		try {
+			for (int i = 0; i < 100; i++) {
+				HTMRanges ranges = randomRanges(random, i == 0 ? 0 : random.nextInt(30000));
+				checkBinary(random, ranges, file);
+				checkRaw(random, ranges, file);
+			}
+			byte[] foreign = new byte[40];
+			random.nextBytes(foreign);
+			checkRejected(foreign, file, false, "foreign");
+			checkRejected(foreign, file, true, "foreign");
+			checkOutOfOrder(file);
+		} finally {
+			file.delete();
+		}
+		System.out.println("HTMRangesFileTest passed");
+	}
+
+	/**
+	 * Sorted ranges, neither overlapping nor adjacent
+	 */
+	private static HTMRanges randomRanges(Random random, int count) {
+		int level = 1 + random.nextInt(20);
+		long first = 8L << 2 * level, end = 16L << 2 * level;
+		long[] lows = new long[count], highs = new long[count];
+		int n = 0;
+		long hid = first;
+		while (n < count) {
+			int bits = random.nextInt(2 * level + 1);
+			long lo = hid + 1 + (random.nextLong() >>> 1) % (1L << bits);
+			long hi = lo + (random.nextLong() >>> 1) % (1L << random.nextInt(bits + 1));
+			if (hi >= end) {
+				break;
+			}
+			lows[n] = lo;
+			highs[n] = hi;
+			n++;
+			hid = hi + 1;
+		}
+		return new HTMRanges(level, lows, highs, n);
+	}
+
+	private static void checkBinary(Random random, HTMRanges ranges, File file) throws IOException {
+		ranges.toBinaryFile(file.getPath());
+		checkSame(HTMRanges.fromBinaryFile(file.getPath()), ranges, "binary");
+
+		// Streaming through the writer gives the same file
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		HTMRanges.BinaryWriter writer = new HTMRanges.BinaryWriter(file.getPath(), ranges.getLevel());
+		ranges.forEachRange(writer);
+		writer.close();
+		check(Arrays.equals(Files.readAllBytes(file.toPath()), bytes), "BinaryWriter differs");
+
+		for (int k = 0; k < 5; k++) {
+			int length = random.nextInt(bytes.length);
+			checkRejected(Arrays.copyOf(bytes, length), file, false, "binary truncated to " + length);
+		}
+		if (bytes.length < 100) {
+			for (int length = 0; length < bytes.length; length++) {
+				checkRejected(Arrays.copyOf(bytes, length), file, false, "binary truncated to " + length);
+			}
+		}
+	}
+
+	/**
+	 * Each mapping gets a file of its own, the file under a live mapping
+	 * must not be rewritten.
+	 */
+	private static void checkRaw(Random random, HTMRanges ranges, File file) throws IOException {
+		File mappedFile = File.createTempFile("ranges", ".raw");
+		try {
+			ranges.toRawFile(mappedFile.getPath());
+			byte[] bytes = Files.readAllBytes(mappedFile.toPath());
+			HTMRanges mapped = HTMRanges.map(mappedFile.getPath());
+			checkSame(mapped, ranges, "raw");
+			check(mapped.getSizeInBytes() == ranges.getSizeInBytes(), "raw: size in bytes");
+
+			long[] hids = new long[1000];
+			for (int k = 0; k < hids.length; k++) {
+				hids[k] = randomId(random, ranges);
+			}
+			BitSet expected = new BitSet(), actual = new BitSet();
+			ranges.contains(hids, expected);
+			mapped.contains(hids, actual);
+			check(actual.equals(expected), "raw: batch contains");
+			for (long hid : hids) {
+				check(mapped.contains(hid) == ranges.contains(hid), "raw: contains " + hid);
+				check(mapped.overlaps(hid) == ranges.overlaps(hid), "raw: overlaps " + hid);
+			}
+
+			HTMRanges other = randomRanges(random, random.nextInt(1000));
+			checkSame(mapped.union(other), ranges.union(other), "raw: union");
+			checkSame(other.intersect(mapped), other.intersect(ranges), "raw: intersect");
+			checkSame(mapped.subtract(other), ranges.subtract(other), "raw: subtract");
+
+			HTMRanges.RawWriter writer = new HTMRanges.RawWriter(file.getPath(), ranges.getLevel());
+			ranges.forEachRange(writer);
+			writer.close();
+			check(Arrays.equals(Files.readAllBytes(file.toPath()), bytes), "RawWriter differs");
+
+			for (int k = 0; k < 5; k++) {
+				int length = random.nextInt(bytes.length);
+				checkRejected(Arrays.copyOf(bytes, length), file, true, "raw truncated to " + length);
+			}
+		} finally {
+			mappedFile.delete();
+		}
+	}
+
+	/**
+	 * HTMid of any level near the ranges
+	 */
+	private static long randomId(Random random, HTMRanges ranges) {
+		long hid;
+		if (ranges.size() > 0) {
+			int i = random.nextInt(ranges.size());
+			hid = ranges.getLowerBound(i) + random.nextInt(3) - 1;
+			if (random.nextBoolean()) {
+				hid = ranges.getUpperBound(i) + random.nextInt(3) - 1;
+			}
+		} else {
+			hid = (8L << 2 * ranges.getLevel()) + random.nextInt(8);
+		}
+		int shift = random.nextInt(5) - 2;
+		if (shift < 0) {
+			hid >>= 2 * Math.min(-shift, ranges.getLevel());
+		} else {
+			hid = (hid << 2 * shift) + random.nextInt(1 << 2 * shift);
+		}
+		return hid;
+	}
+
+	private static void checkRejected(byte[] bytes, File file, boolean raw, String what)
+			throws IOException {
+		Files.write(file.toPath(), bytes);
+		try {
+			if (raw) {
+				HTMRanges.map(file.getPath());
+			} else {
+				HTMRanges.fromBinaryFile(file.getPath());
+			}
+			check(false, what + " accepted");
+		} catch (IOException e) {
+		}
+	}
+
+	private static void checkOutOfOrder(File file) throws IOException {
+		HTMRanges.BinaryWriter writer = new HTMRanges.BinaryWriter(file.getPath(), 0);
+		try {
+			writer.write(9, 10);
+			writer.write(10, 12);
+			check(false, "overlapping ranges written");
+		} catch (IllegalArgumentException e) {
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static void checkSame(HTMRanges actual, HTMRanges expected, String what) {
+		check(actual.getLevel() == expected.getLevel(), what + ": level " + actual.getLevel());
+		check(actual.size() == expected.size(), what + ": size " + actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			check(actual.getLowerBound(i) == expected.getLowerBound(i)
+					&& actual.getUpperBound(i) == expected.getUpperBound(i), what + ": range " + i);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
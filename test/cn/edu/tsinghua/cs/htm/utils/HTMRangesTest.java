@@ -0,0 +1,163 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks HTMRanges against a BitSet of HTMids at the finer level
+ * Sets are unions of random runs, given out of order and overlapping,
+ * at the same or different levels, and sometimes empty.
+ */
+public class HTMRangesTest {
+
+	public static void main(String[] args) {
+		Random random = new Random(21);
+		for (int i = 0; i < 500; i++) {
+			int levelA = 4 + random.nextInt(3);
+			int levelB = 4 + random.nextInt(3);
+			BitSet bitsA = randomBits(random, levelA);
+			BitSet bitsB = randomBits(random, levelB);
+			HTMRanges a = toRanges(random, bitsA, levelA);
+			HTMRanges b = toRanges(random, bitsB, levelB);
+			checkSame(a, bitsA, levelA, "from pairs");
+			checkLookups(random, a, bitsA, levelA);
+
+			int level = Math.max(levelA, levelB);
+			BitSet finerA = extend(bitsA, levelA, level);
+			BitSet finerB = extend(bitsB, levelB, level);
+
+			BitSet expected = (BitSet) finerA.clone();
+			expected.or(finerB);
+			checkSame(a.union(b), expected, level, "union");
+
+			expected = (BitSet) finerA.clone();
+			expected.and(finerB);
+			checkSame(a.intersect(b), expected, level, "intersect");
+
+			expected = (BitSet) finerA.clone();
+			expected.andNot(finerB);
+			checkSame(a.subtract(b), expected, level, "subtract");
+		}
+		System.out.println("HTMRangesTest passed");
+	}
+
+	/**
+	 * Runs of random lengths and gaps over all HTMids of a level
+	 * Indexed by HTMid, so bits below 8 << 2 * level stay clear.
+	 */
+	private static BitSet randomBits(Random random, int level) {
+		BitSet bits = new BitSet();
+		if (random.nextInt(10) == 0) {
+			return bits;
+		}
+		long first = 8L << 2 * level, end = 16L << 2 * level;
+		int scale = 1 << random.nextInt(2 * level);
+		long hid = first + random.nextInt(scale);
+		while (hid < end) {
+			long runEnd = Math.min(hid + 1 + random.nextInt(scale), end);
+			bits.set((int) hid, (int) runEnd);
+			hid = runEnd + 1 + random.nextInt(scale);
+		}
+		return bits;
+	}
+
+	/**
+	 * Pairs for each run, split at random, shuffled and some repeated
+	 */
+	private static HTMRanges toRanges(Random random, BitSet bits, int level) {
+		if (bits.isEmpty()) {
+			return new HTMRanges(level);
+		}
+		List<Pair<HTMid, HTMid> > pairs = new ArrayList<Pair<HTMid, HTMid> >();
+		for (int lo = bits.nextSetBit(0); lo >= 0; lo = bits.nextSetBit(lo + 1)) {
+			int hi = bits.nextClearBit(lo) - 1;
+			while (lo < hi && random.nextBoolean()) {
+				int cut = lo + random.nextInt(hi - lo);
+				// Overlapping or adjacent halves
+				pairs.add(new Pair<HTMid, HTMid>(new HTMid(lo), new HTMid(cut)));
+				lo = cut + 1 - random.nextInt(2);
+			}
+			pairs.add(new Pair<HTMid, HTMid>(new HTMid(lo), new HTMid(hi)));
+			if (random.nextInt(5) == 0) {
+				pairs.add(new Pair<HTMid, HTMid>(new HTMid(lo), new HTMid(hi)));
+			}
+			lo = hi;
+		}
+		Collections.shuffle(pairs, random);
+		return new HTMRanges(pairs);
+	}
+
+	/**
+	 * Same set at a finer level
+	 */
+	private static BitSet extend(BitSet bits, int level, int newLevel) {
+		int shiftBits = 2 * (newLevel - level);
+		BitSet extended = new BitSet();
+		for (int hid = bits.nextSetBit(0); hid >= 0; hid = bits.nextSetBit(hid + 1)) {
+			extended.set(hid << shiftBits, (hid + 1) << shiftBits);
+		}
+		return extended;
+	}
+
+	/**
+	 * Ranges must be the runs of the BitSet, sorted, neither overlapping nor adjacent
+	 */
+	private static void checkSame(HTMRanges ranges, BitSet bits, int level, String what) {
+		check(ranges.getLevel() == level || bits.isEmpty(), what + ": level " + ranges.getLevel());
+		int i = 0;
+		for (int lo = bits.nextSetBit(0); lo >= 0; lo = bits.nextSetBit(lo + 1)) {
+			int hi = bits.nextClearBit(lo) - 1;
+			check(i < ranges.size(), what + ": missing range " + lo + ", " + hi);
+			check(ranges.getLowerBound(i) == lo && ranges.getUpperBound(i) == hi,
+					what + ": range " + i + " is " + ranges.getLowerBound(i) + ", "
+					+ ranges.getUpperBound(i) + " instead of " + lo + ", " + hi);
+			i++;
+			lo = hi;
+		}
+		check(i == ranges.size(), what + ": " + ranges.size() + " ranges instead of " + i);
+	}
+
+	/**
+	 * contains() and overlaps() of HTMids at, above and below the level
+	 */
+	private static void checkLookups(Random random, HTMRanges ranges, BitSet bits, int level) {
+		long[] hids = new long[200];
+		for (int k = 0; k < hids.length; k++) {
+			int thatLevel = random.nextInt(level + 3);
+			hids[k] = (8L << 2 * thatLevel) + (long) (random.nextDouble() * (8L << 2 * thatLevel));
+		}
+		hids[0] = 0;
+		hids[1] = -1;
+		BitSet out = new BitSet();
+		out.set(0, hids.length + 5);
+		ranges.contains(hids, out);
+		check(out.nextClearBit(hids.length) == hids.length + 5, "bits past the HTMids kept");
+		for (int k = 0; k < hids.length; k++) {
+			long hid = hids[k];
+			boolean contains = false, overlaps = false;
+			int thatLevel = HTMid.getLevel(hid);
+			if (thatLevel >= 0 && thatLevel >= level) {
+				contains = overlaps = bits.get((int) HTMid.truncate(hid, level));
+			} else if (thatLevel >= 0) {
+				int lo = (int) HTMid.extendLower(hid, level);
+				int hi = (int) HTMid.extendUpper(hid, level);
+				contains = bits.nextClearBit(lo) > hi;
+				int next = bits.nextSetBit(lo);
+				overlaps = next >= 0 && next <= hi;
+			}
+			check(ranges.contains(hid) == contains, "contains " + hid);
+			check(ranges.overlaps(hid) == overlaps, "overlaps " + hid);
+			check(out.get(k) == contains, "batch contains " + hid);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
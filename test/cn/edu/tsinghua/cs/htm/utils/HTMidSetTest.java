@@ -0,0 +1,150 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import cn.edu.tsinghua.cs.htm.shapes.Trixel;
+
+/**
+ * Checks HTMidSet against a BitSet of the area at the deepest level
+ * The expected HTMids are found top-down, taking each Trixel whose area
+ * is all in the set and descending into those partly in it.
+ */
+public class HTMidSetTest {
+
+	private static final int deepest = 6;
+
+	public static void main(String[] args) {
+		Random random = new Random(23);
+		for (int i = 0; i < 1000; i++) {
+			long[] hids = randomIds(random);
+			BitSet area = new BitSet();
+			for (long hid : hids) {
+				area.set((int) HTMid.extendLower(hid, deepest), (int) HTMid.extendUpper(hid, deepest) + 1);
+			}
+			List<Long> expected = new ArrayList<Long>();
+			for (long root = 8; root < 16; root++) {
+				descend(root, area, expected);
+			}
+
+			HTMidSet set = new HTMidSet(hids);
+			checkSame(set, expected, "from HTMids");
+			HTMRanges ranges = set.toRanges(deepest);
+			checkSame(new HTMidSet(ranges), expected, "from ranges");
+
+			for (int level = 0; level <= deepest + 2; level++) {
+				checkRanges(set.toRanges(level), area, level);
+			}
+		}
+
+		try {
+			new HTMidSet(new long[] {8, -1});
+			check(false, "illegal HTMid accepted");
+		} catch (IllegalArgumentException e) {
+		}
+		for (int level : new int[] {-1, HTMid.maxLevel + 1}) {
+			try {
+				new HTMidSet(new long[] {8}).toRanges(level);
+				check(false, "toRanges at level " + level);
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				new HTMRanges(new ArrayList<Trixel>(), level);
+				check(false, "HTMRanges at level " + level);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		HTMidSet empty = new HTMidSet(new long[0]);
+		check(empty.size() == 0 && empty.toRanges(3).size() == 0, "empty set");
+		try {
+			empty.getId(0);
+			check(false, "index past the size accepted");
+		} catch (IndexOutOfBoundsException e) {
+		}
+		System.out.println("HTMidSetTest passed");
+	}
+
+	/**
+	 * HTMids of levels up to deepest, some repeated or nested,
+	 * and sometimes all 4 children of a Trixel
+	 */
+	private static long[] randomIds(Random random) {
+		int n = random.nextInt(60);
+		long[] hids = new long[n];
+		for (int k = 0; k < n; k++) {
+			int level = random.nextInt(deepest + 1);
+			hids[k] = (8L << 2 * level) + random.nextInt(8 << 2 * level);
+			if (k >= 4 && random.nextInt(4) == 0) {
+				long parent = HTMid.getParent(hids[random.nextInt(k)]);
+				if (HTMid.getLevel(parent) >= 0) {
+					for (int j = 0; j < 4; j++) {
+						hids[k - j] = HTMid.getChild(parent, j);
+					}
+				}
+			} else if (k > 0 && random.nextInt(8) == 0) {
+				hids[k] = hids[random.nextInt(k)];
+			}
+		}
+		return hids;
+	}
+
+	private static void descend(long hid, BitSet area, List<Long> expected) {
+		int lo = (int) HTMid.extendLower(hid, deepest);
+		int hi = (int) HTMid.extendUpper(hid, deepest);
+		if (area.nextClearBit(lo) > hi) {
+			expected.add(hid);
+		} else {
+			int next = area.nextSetBit(lo);
+			if (next >= 0 && next <= hi) {
+				for (int j = 0; j < 4; j++) {
+					descend(HTMid.getChild(hid, j), area, expected);
+				}
+			}
+		}
+	}
+
+	private static void checkSame(HTMidSet set, List<Long> expected, String what) {
+		check(set.size() == expected.size(), what + ": size " + set.size()
+				+ " instead of " + expected.size());
+		long[] array = set.toArray();
+		for (int i = 0; i < expected.size(); i++) {
+			check(set.getId(i) == expected.get(i), what + ": HTMid " + i + " is "
+					+ set.getId(i) + " instead of " + expected.get(i));
+			check(array[i] == expected.get(i), what + ": toArray() at " + i);
+		}
+	}
+
+	/**
+	 * Ranges at a level hold each HTMid whose Trixel overlaps the area,
+	 * as deeper HTMids are truncated
+	 */
+	private static void checkRanges(HTMRanges ranges, BitSet area, int level) {
+		check(ranges.getLevel() == level, "level " + ranges.getLevel());
+		BitSet expected = new BitSet();
+		for (int hid = area.nextSetBit(0); hid >= 0; hid = area.nextSetBit(hid + 1)) {
+			if (level <= deepest) {
+				expected.set((int) HTMid.truncate(hid, level));
+			} else {
+				expected.set((int) HTMid.extendLower(hid, level), (int) HTMid.extendUpper(hid, level) + 1);
+			}
+		}
+		BitSet actual = new BitSet();
+		long previousHi = -2;
+		for (int i = 0; i < ranges.size(); i++) {
+			long lo = ranges.getLowerBound(i), hi = ranges.getUpperBound(i);
+			check(lo > previousHi + 1 && lo <= hi, "ranges at level " + level + " not compacted");
+			actual.set((int) lo, (int) hi + 1);
+			previousHi = hi;
+		}
+		check(actual.equals(expected), "ranges at level " + level);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package cn.edu.tsinghua.cs.htm.utils;
+
+import java.util.Random;
+
+/**
+ * Checks the HTMid codec against the conversions it replaced
+ * The former loops are kept here as the reference. They differ only
+ * where the codec now refuses: illegal HTMids at or above 1 << 62
+ * and names longer than maxNameLength.
+ */
+public class HTMidTest {
+
+	public static void main(String[] args) {
+		Random random = new Random(25);
+		char[] buffer = new char[HTMid.maxNameLength + 10];
+		for (int i = 0; i < 200000; i++) {
+			int level = random.nextInt(30);
+			long hid = (8L << 2 * level) + ((random.nextLong() >>> 1) % (8L << 2 * level));
+			if (i < 16) {
+				// First and last HTMids of levels 0 and 29
+				hid = i < 8 ? 8 + i : (16L << 58) - 16 + i;
+				level = HTMid.getLevel(hid);
+			}
+			String name = referenceName(hid);
+			check(HTMid.isValid(hid), "valid " + hid);
+			check(HTMid.getLevel(hid) == level && referenceLevel(hid) == level, "level of " + hid);
+			check(name.equals(HTMid.idToName(hid)), "name of " + hid + ": " + HTMid.idToName(hid));
+			check(new HTMid(hid).getName().equals(name), "getName of " + hid);
+
+			int offset = random.nextInt(10);
+			int length = HTMid.formatName(hid, buffer, offset);
+			check(new String(buffer, offset, length).equals(name), "formatName of " + hid);
+
+			check(HTMid.nameToId(name) == hid && referenceId(name) == hid, "id of " + name);
+			check(new HTMid(name).getId() == hid, "HTMid(" + name + ")");
+			String line = "1.5,2," + name + ",x";
+			check(HTMid.parseName(line, 6, 6 + name.length()) == hid, "parseName of " + line);
+
+			int otherLevel = random.nextInt(30);
+			check(HTMid.truncate(hid, otherLevel) == referenceTruncate(hid, otherLevel),
+					"truncate " + hid + " to " + otherLevel);
+			long[] bounds = referenceExtend(hid, otherLevel);
+			check(HTMid.extendLower(hid, otherLevel) == bounds[0]
+					&& HTMid.extendUpper(hid, otherLevel) == bounds[1],
+					"extend " + hid + " to " + otherLevel);
+			if (level < 29) {
+				int child = random.nextInt(4);
+				check(HTMid.getChild(hid, child) == hid * 4 + child, "child of " + hid);
+				check(HTMid.getParent(hid * 4 + child) == hid, "parent of " + hid);
+			}
+		}
+
+		for (int i = 0; i < 200000; i++) {
+			// Any long below 1 << 62, mostly illegal
+			long hid = (random.nextLong() >>> 2) >>> random.nextInt(62);
+			String name = referenceName(hid);
+			check(HTMid.isValid(hid) == (name != null), "isValid " + hid);
+			check(name == null ? HTMid.idToName(hid) == null : name.equals(HTMid.idToName(hid)),
+					"name of " + hid);
+			check(HTMid.formatName(hid, buffer, 0) == (name == null ? -1 : name.length()),
+					"formatName of " + hid);
+		}
+		check(HTMid.idToName(-1) == null && HTMid.idToName(1L << 62) == null, "illegal names");
+
+		for (int i = 0; i < 200000; i++) {
+			String name = randomName(random);
+			long expected = name.length() > HTMid.maxNameLength ? 0 : referenceId(name);
+			check(HTMid.nameToId(name) == expected, "id of " + name);
+		}
+		System.out.println("HTMidTest passed");
+	}
+
+	/**
+	 * Names of any length, sometimes with illegal chars
+	 */
+	private static String randomName(Random random) {
+		int length = random.nextInt(35);
+		StringBuilder sb = new StringBuilder();
+		String chars = "NS0123x";
+		for (int i = 0; i < length; i++) {
+			if (i == 0 || random.nextInt(50) == 0) {
+				sb.append(chars.charAt(random.nextInt(chars.length())));
+			} else {
+				sb.append((char) ('0' + random.nextInt(4)));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String referenceName(long hid) {
+		long shiftedBit, shiftedHid;
+		if (hid < 0 || hid < 8) {
+			return null;
+		}
+		int i;
+		for (i = 2; i < 64; i += 2) {
+			shiftedHid = hid << (i - 2);
+			shiftedBit = shiftedHid & (0x2L << 60);
+			if (shiftedBit != 0) {
+				break;
+			}
+			if ((shiftedHid & (0x1L << 60)) != 0) {
+				return null;
+			}
+		}
+		int size = (64 - i) / 2;
+		char[] name = new char[size];
+		for (i = 0; i < size - 1; i++) {
+			name[size - i - 1] = (char) ('0' + (int) ((hid >> (i * 2)) & 3));
+		}
+		shiftedBit = (hid >> (size * 2 - 2)) & 1;
+		name[0] = shiftedBit != 0 ? 'N' : 'S';
+		return String.valueOf(name);
+	}
+
+	private static long referenceId(String hidName) {
+		long resultHid = 0;
+		if (hidName.length() < 2 || hidName.length() > (64 - 2) * 2) {
+			return 0;
+		}
+		if (hidName.charAt(0) != 'N' && hidName.charAt(0) != 'S') {
+			return 0;
+		}
+		for (int i = hidName.length() - 1; i > 0; i--) {
+			if (hidName.charAt(i) > '3' || hidName.charAt(i) < '0') {
+				return 0;
+			}
+			long bits = hidName.charAt(i) - '0';
+			resultHid += bits << 2 * (hidName.length() - i - 1);
+		}
+		long bits = hidName.charAt(0) == 'N' ? 3 : 2;
+		resultHid += bits << (2 * hidName.length() - 2);
+		return resultHid;
+	}
+
+	private static int referenceLevel(long hid) {
+		int i;
+		for (i = 2; i < 64; i += 2) {
+			if (((hid << (i - 2)) & (0x2L << 60)) != 0) {
+				break;
+			}
+		}
+		return (64 - i) / 2 - 2;
+	}
+
+	private static long referenceTruncate(long hid, int level) {
+		int currentLevel = referenceLevel(hid);
+		if (level < currentLevel) {
+			return hid >> 2 * (currentLevel - level);
+		}
+		return hid;
+	}
+
+	private static long[] referenceExtend(long hid, int level) {
+		int currentLevel = referenceLevel(hid);
+		if (currentLevel < level) {
+			int shiftBits = 2 * (level - currentLevel);
+			long lo = hid << shiftBits;
+			return new long[] {lo, lo + ((1L << shiftBits) - 1)};
+		}
+		long lo = hid >> 2 * (currentLevel - level);
+		return new long[] {lo, lo};
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}